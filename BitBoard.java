@@ -0,0 +1,75 @@
+// The classic 3x3 board packed into one int: bits 0-8 hold the X marks and bits 9-17 the O marks,
+// with bit i standing for slot i + 1
+class BitBoard implements Board {
+    static final int SIZE = 3;
+
+    private static final int O_SHIFT = 9;
+    private static final int FULL_MASK = 0x1FF;
+    private static final int[] WINNING_MASKS = {
+      0b000000111, 0b000111000, 0b111000000, // rows
+      0b001001001, 0b010010010, 0b100100100, // columns
+      0b100010001, 0b001010100 // diagonals
+    };
+
+    private int bits;
+
+    public int getBits() {
+        return bits;
+    }
+
+    @Override
+    public int getSize() {
+        return SIZE;
+    }
+
+    @Override
+    public int getWinLength() {
+        return SIZE;
+    }
+
+    @Override
+    public int getCellCount() {
+        return SIZE * SIZE;
+    }
+
+    @Override
+    public int getMark(int index) {
+        int slot = 1 << (index - 1);
+        if ((bits & slot) != 0) {
+            return X;
+        }
+        if (((bits >>> O_SHIFT) & slot) != 0) {
+            return O;
+        }
+        return EMPTY;
+    }
+
+    @Override
+    public boolean place(int index, int mark) {
+        if (index < 1 || index > 9) {
+            throw new IndexOutOfBoundsException("slot " + index);
+        }
+        int slot = 1 << (index - 1);
+        if (((bits | (bits >>> O_SHIFT)) & slot) != 0) {
+            return false;
+        }
+        bits |= mark == X ? slot : slot << O_SHIFT;
+        return true;
+    }
+
+    @Override
+    public boolean isWinningMove(int index) {
+        int marks = getMark(index) == X ? bits & FULL_MASK : (bits >>> O_SHIFT) & FULL_MASK;
+        for (int mask : WINNING_MASKS) {
+            if ((marks & mask) == mask) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isFull() {
+        return Integer.bitCount((bits | (bits >>> O_SHIFT)) & FULL_MASK) == 9;
+    }
+}
@@ -0,0 +1,40 @@
+// Cells are addressed by a 1-based slot number, counted left to right and top to bottom as on the wire
+interface Board {
+    int EMPTY = 0;
+    int X = 1;
+    int O = 2;
+
+    int getSize();
+
+    int getWinLength();
+
+    int getCellCount();
+
+    int getMark(int index);
+
+    // Returns false when the slot is already taken
+    boolean place(int index, int mark);
+
+    // Only looks at the lines running through the given slot, which must hold the last placed mark
+    boolean isWinningMove(int index);
+
+    boolean isFull();
+
+    default char markAt(int index) {
+        int mark = getMark(index);
+        if (mark == X) {
+            return 'X';
+        }
+        if (mark == O) {
+            return 'O';
+        }
+        return '*';
+    }
+
+    static Board create(int size, int winLength) {
+        if (size == BitBoard.SIZE && winLength == BitBoard.SIZE) {
+            return new BitBoard();
+        }
+        return new GridBoard(size, winLength);
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A server-side player with no socket. It receives responses like any other client and answers its own
+// YRMV with the best move from the solved table, or from a time-limited search on boards larger than 3x3.
+class BotConnection extends ClientConnection {
+    private static final SolvedTable SOLVED_TABLE = SolvedTable.build();
+    private static volatile SearchEngine searchEngine;
+    private static volatile int thinkMillis = 1000;
+    private static final AtomicLong botIdCounter = new AtomicLong();
+    private static final ExecutorService botExecutor = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "bot-player");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Games games;
+
+    private BotConnection(Games games) {
+        super();
+        this.games = games;
+    }
+
+    // Loading the class builds the solved table, so this lets the server pay for it at startup
+    public static void prepare(int searchThreads, int thinkTimeMillis) {
+        searchEngine = new SearchEngine(searchThreads);
+        thinkMillis = thinkTimeMillis;
+    }
+
+    // Starts a new bot that says HELO and joins the given game
+    public static void joinGame(Games games, String gameId) {
+        BotConnection bot = new BotConnection(games);
+        String botId = "BOT" + botIdCounter.getAndIncrement();
+        botExecutor.execute(() -> {
+            TicTacToeServer.handleClientRequest(bot, "HELO 1 " + botId);
+            TicTacToeServer.handleClientRequest(bot, "JOIN " + gameId);
+        });
+    }
+
+    @Override
+    public void sendResponse(CharSequence response) {
+        String[] responseParts = response.toString().split(" ");
+        if (responseParts[0].equals("YRMV") && responseParts.length == 3 && responseParts[2].equals(getClientId())) {
+            String gameId = responseParts[1];
+            botExecutor.execute(() -> play(gameId));
+        } else if (responseParts[0].equals("TERM")) {
+            botExecutor.execute(() -> TicTacToeServer.handleClientRequest(this, "GDBY " + getClientId()));
+        }
+    }
+
+    // Runs in the game's mailbox so the board is read between requests. Large boards are copied there
+    // and searched outside it, so the opponent's requests are not held up while the bot thinks.
+    private void play(String gameId) {
+        Game game = games.getGame(gameId);
+        if (game == null) {
+            return;
+        }
+        game.getMailbox().execute(() -> {
+            if (game.isDone() || !getClientId().equals(game.getCurrentPlayer())) {
+                return;
+            }
+            int mark = game.getCurrentMark();
+            if (game.getBoard() instanceof BitBoard) {
+                int slot = SOLVED_TABLE.bestMove(SolvedTable.indexOf(game.getBoard()));
+                botExecutor.execute(() -> move(gameId, slot));
+            } else {
+                Board board = GridBoard.copyOf(game.getBoard());
+                botExecutor.execute(() -> move(gameId, chooseMove(board, mark)));
+            }
+        });
+    }
+
+    // Sent from the bot's own threads, never from inside a mailbox, whose thread may be mid-request
+    private void move(String gameId, int slot) {
+        if (slot > 0) {
+            TicTacToeServer.handleClientRequest(this, "MOVE " + gameId + " " + slot);
+        }
+    }
+
+    private static int chooseMove(Board board, int mark) {
+        SearchEngine engine = searchEngine;
+        if (engine != null) {
+            return engine.findMove(board, mark, thinkMillis);
+        }
+        int cells = board.getCellCount();
+        int start = ThreadLocalRandom.current().nextInt(cells);
+        for (int i = 0; i < cells; i++) {
+            int slot = (start + i) % cells + 1;
+            if (board.getMark(slot) == Board.EMPTY) {
+                return slot;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,28 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Fixed-size buffers handed between the receiving thread and the workers, so steady traffic reuses the
+// same few buffers instead of allocating one per datagram
+class BufferPool {
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    // Buffers beyond the pool's capacity are left to the garbage collector
+    public void release(ByteBuffer buffer) {
+        buffers.offer(buffer);
+    }
+}
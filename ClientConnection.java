@@ -1,19 +1,69 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ClientConnection {
     private Socket tcpSocket;
-    private DatagramSocket udpSocket;
+    private DatagramChannel udpChannel;
+    private InetSocketAddress socketAddress;
+    private UdpSessions udpSessions;
+    private Object udpKey;
+    private ReliableUdp reliableUdp;
+    private volatile long lastSeen;
+    private volatile boolean closed;
+    private volatile long closedAt;
+    private final Deque<String> replay = new ArrayDeque<>();
+    private volatile ClientConnection resumedBy;
+    private volatile int protocolVersion = 1;
     private BufferedReader reader;
     private OutputStream outputStream;
     private InetAddress clientAddress;
     private int clientPort;
     private String sessionId;
     private String clientId;
-    private ArrayList<Game> gameList;
+    private List<Game> gameList;
+    // Set once GDBY or an expired session has forfeited the client's games, after which a matched game
+    // must not be added. Guarded by gameListLock.
+    private boolean gameListEnded;
+    private final Object gameListLock = new Object();
 
-    private static long sessionIdCounter = 0;
+    private SocketChannel channel;
+    private SelectionKey selectionKey;
+    private TcpEventLoop eventLoop;
+    private ByteBuffer partialLine;
+    private Deque<ByteBuffer> outbound;
+    private ByteBuffer[] gather;
+    private int queuedBytes;
+    private boolean flushScheduled;
+
+    private byte[] outputBuffer;
+    private ByteBuffer outputView;
+    // Guards the output buffer, the outbound queue and the replay. A lock rather than a monitor, because
+    // blocking TCP sessions write while holding it and a virtual thread blocked inside synchronized
+    // would pin its carrier.
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    private static final AtomicLong sessionIdCounter = new AtomicLong();
+    private static final SecureRandom sessionTokens = new SecureRandom();
+    private static final int REPLAY_CAPACITY = 64;
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int MAX_GATHER = 16;
+    private static final BufferPool outboundChunks = new BufferPool(CHUNK_SIZE, 4096);
+
+    // For players that live inside the server and have no socket
+    protected ClientConnection() {
+        this.sessionId = null;
+        this.clientId = null;
+        this.gameList = new CopyOnWriteArrayList<>();
+    }
 
     public ClientConnection(Socket socket) throws IOException {
         this.tcpSocket = socket;
@@ -23,16 +73,36 @@ public class ClientConnection {
         this.clientPort = socket.getPort();
         this.sessionId = null;
         this.clientId = null;
-        this.gameList = new ArrayList<>();
+        this.gameList = new CopyOnWriteArrayList<>();
     }
 
-    public ClientConnection(DatagramSocket socket, InetAddress address, int port) {
-        this.udpSocket = socket;
-        this.clientAddress = address;
-        this.clientPort = port;
+    public ClientConnection(SocketChannel channel, SelectionKey selectionKey, TcpEventLoop eventLoop) {
+        this.tcpSocket = channel.socket();
+        this.channel = channel;
+        this.selectionKey = selectionKey;
+        this.eventLoop = eventLoop;
+        this.outbound = new ArrayDeque<>();
+        this.gather = new ByteBuffer[MAX_GATHER];
+        this.clientAddress = tcpSocket.getInetAddress();
+        this.clientPort = tcpSocket.getPort();
         this.sessionId = null;
         this.clientId = null;
-        this.gameList = new ArrayList<>();
+        this.gameList = new CopyOnWriteArrayList<>();
+    }
+
+    // A reliable client's datagrams and replies go through its stream's ReliableUdp; udpKey is what
+    // udpSessions knows the connection by
+    public ClientConnection(DatagramChannel channel, InetSocketAddress address, UdpSessions udpSessions, Object udpKey, boolean reliable) {
+        this.udpChannel = channel;
+        this.socketAddress = address;
+        this.udpSessions = udpSessions;
+        this.udpKey = udpKey;
+        this.reliableUdp = reliable ? new ReliableUdp(datagram -> channel.send(datagram, address)) : null;
+        this.clientAddress = address.getAddress();
+        this.clientPort = address.getPort();
+        this.sessionId = null;
+        this.clientId = null;
+        this.gameList = new CopyOnWriteArrayList<>();
     }
 
     public boolean isTcpConnection() {
@@ -40,15 +110,51 @@ public class ClientConnection {
     }
 
     public boolean isUdpConnection() {
-        return udpSocket != null;
+        return udpChannel != null;
+    }
+
+    public boolean isChannelConnection() {
+        return channel != null;
     }
 
     public Socket getTcpSocket() {
         return tcpSocket;
     }
 
-    public DatagramSocket getUdpSocket() {
-        return udpSocket;
+    public InetSocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
+    public Object getUdpKey() {
+        return udpKey;
+    }
+
+    // null unless the client wraps its datagrams for reliable delivery
+    public ReliableUdp getReliableUdp() {
+        return reliableUdp;
+    }
+
+    // Wall-clock millis of the last datagram or TCP read from the client
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public void touch() {
+        lastSeen = System.currentTimeMillis();
+    }
+
+    // 2 once the client has negotiated TTTP v2 in HELO; until then and for v1 clients, 1
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    // v2 needs the event loop's framing or whole datagrams, so blocking TCP sessions stay on v1
+    public int getMaxProtocolVersion() {
+        return isChannelConnection() || isUdpConnection() ? 2 : 1;
     }
 
     public String getSessionId() {
@@ -80,41 +186,322 @@ public class ClientConnection {
       this.gameList.add(game);
     }
 
-    public ArrayList<Game> getGameList() {
+    // For a game another client's request puts this client in. Returns false, and leaves the game out,
+    // once the client's games have been ended, as nothing would forfeit the game afterwards.
+    public boolean addToGameListIfActive(Game game) {
+      synchronized (gameListLock) {
+        if (gameListEnded) {
+          return false;
+        }
+        gameList.add(game);
+        return true;
+      }
+    }
+
+    // Stops further games from being added and returns the ones the client has, to be forfeited
+    public List<Game> endGameList() {
+      synchronized (gameListLock) {
+        gameListEnded = true;
+        return gameList;
+      }
+    }
+
+    public List<Game> getGameList() {
       return gameList;
     }
 
 
-    public static synchronized String createSessionID(){
-        return "SID" + sessionIdCounter++;
+    // The session ID is also the token that resumes the session from a new connection, so it ends in
+    // 64 random bits that another client cannot guess
+    public static String createSessionID(){
+        return "SID" + sessionIdCounter.getAndIncrement() + "-" + Long.toHexString(sessionTokens.nextLong());
+    }
+
+    // After GDBY the session cannot be resumed, and responses to it are no longer kept for a reconnect
+    public void endSession() {
+        this.sessionId = null;
+    }
+
+    // Takes over the session of a connection that was lost: its ID, client and games move here, the
+    // greeting is sent in the encoding the HELO came in, then everything kept for the session while it
+    // had no connection in the newly negotiated one. From then on the old connection hands whatever is
+    // sent to it on to this one.
+    public void resume(ClientConnection previous, CharSequence greeting, int protocolVersion) throws IOException {
+        previous.sendLock.lock();
+        try {
+            this.sessionId = previous.sessionId;
+            this.clientId = previous.clientId;
+            this.gameList = previous.gameList;
+            sendResponse(greeting);
+            this.protocolVersion = protocolVersion;
+            for (String response : previous.replay) {
+                sendResponse(response);
+            }
+            previous.replay.clear();
+            previous.resumedBy = this;
+        } finally {
+            previous.sendLock.unlock();
+        }
+    }
+
+    // Wall-clock millis when the connection was closed
+    public long getClosedAt() {
+        return closedAt;
     }
 
     public String readRequest() throws IOException {
         return reader.readLine();
     }
 
-    public void sendResponse(String response) throws IOException {
-        byte[] responseData = (response + "\r\n").getBytes();
-        if (isTcpConnection()) {
-            outputStream.write(responseData);
-            outputStream.flush();
-            System.out.println("[TCP response] " + response);
-        } else if (isUdpConnection()) {
-            DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddress, clientPort);
-            udpSocket.send(responsePacket);
-            System.out.println("[UDP response] " + response);
+    public ByteBuffer getPartialLine() {
+        return partialLine;
+    }
+
+    public void setPartialLine(ByteBuffer partialLine) {
+        this.partialLine = partialLine;
+    }
+
+    // Responses are encoded into this connection's output buffer, which is reused for every response.
+    // Channel connections only queue the bytes; their event loop writes everything queued in one go.
+    // A response for a session whose connection has been resumed elsewhere goes to the new connection.
+    public void sendResponse(CharSequence response) throws IOException {
+        ClientConnection target = this;
+        while (!target.trySend(response)) {
+            target = target.resumedBy;
         }
     }
 
+    // Returns false once the session has moved to another connection. While the session has no
+    // connection the most recent responses are kept for when it is resumed.
+    private boolean trySend(CharSequence response) throws IOException {
+        sendLock.lock();
+        try {
+            if (resumedBy != null) {
+                return false;
+            }
+            if (closed && sessionId != null) {
+                keepForReplay(response.toString());
+                return true;
+            }
+            int length = encode(response);
+            Metrics.bytesSent(length);
+            if (isChannelConnection()) {
+                enqueue(outputBuffer, length);
+                Log.debug("[TCP response] ", response);
+            } else if (isTcpConnection()) {
+                outputStream.write(outputBuffer, 0, length);
+                outputStream.flush();
+                Log.debug("[TCP response] ", response);
+            } else if (reliableUdp != null) {
+                reliableUdp.send(outputBuffer, 0, length);
+                Log.debug("[UDP response] ", response);
+            } else if (isUdpConnection()) {
+                outputView.clear().limit(length);
+                udpChannel.send(outputView, socketAddress);
+                Log.debug("[UDP response] ", response);
+            }
+            return true;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void keepForReplay(String response) {
+        if (replay.size() == REPLAY_CAPACITY) {
+            replay.pollFirst();
+        }
+        replay.addLast(response);
+    }
+
+    // Sends a line that is already encoded, \r\n included. The same array can be sent to many clients,
+    // so it is only ever read from. A game's BORD snapshot is sent with its game, which keeps the v2
+    // conversion for the next client; other lines are sent with a null game.
+    public void sendEncoded(byte[] line, Game game) throws IOException {
+        ClientConnection target = this;
+        while (!target.trySendEncoded(line, game)) {
+            target = target.resumedBy;
+        }
+    }
+
+    private boolean trySendEncoded(byte[] line, Game game) throws IOException {
+        sendLock.lock();
+        try {
+            if (resumedBy != null) {
+                return false;
+            }
+            if (closed && sessionId != null) {
+                keepForReplay(new String(line, 0, line.length - 2, StandardCharsets.US_ASCII));
+                return true;
+            }
+            byte[] message = protocolVersion == 2 ? TttpV2.convert(line, !isUdpConnection(), game) : line;
+            Metrics.bytesSent(message.length);
+            if (isChannelConnection()) {
+                enqueue(message, message.length);
+            } else if (isTcpConnection()) {
+                outputStream.write(message);
+                outputStream.flush();
+            } else if (reliableUdp != null) {
+                reliableUdp.send(message, 0, message.length);
+            } else if (isUdpConnection()) {
+                udpChannel.send(ByteBuffer.wrap(message), socketAddress);
+            }
+            if (Log.isEnabled(Log.DEBUG)) {
+                String response = new String(line, 0, line.length - 2, StandardCharsets.US_ASCII);
+                Log.debug(isUdpConnection() ? "[UDP response] " : "[TCP response] ", response);
+            }
+            return true;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // TTTP is plain ASCII, so each char is stored as one byte and the line ends with \r\n. A v2 client
+    // gets the line's binary message instead, length-prefixed except in a datagram.
+    private int encode(CharSequence response) {
+        int length = protocolVersion == 2 ? TttpV2.maxEncodedLength(response.length()) : response.length() + 2;
+        if (outputBuffer == null || outputBuffer.length < length) {
+            outputBuffer = new byte[Math.max(length, outputBuffer == null ? 256 : outputBuffer.length * 2)];
+            outputView = ByteBuffer.wrap(outputBuffer);
+        }
+        if (protocolVersion == 2) {
+            int end = TttpV2.encode(response, outputBuffer, 0);
+            return isUdpConnection() ? end : TttpV2.prefixLength(outputBuffer, 0, end);
+        }
+        for (int i = 0; i < response.length(); i++) {
+            outputBuffer[i] = (byte) response.charAt(i);
+        }
+        outputBuffer[length - 2] = '\r';
+        outputBuffer[length - 1] = '\n';
+        return length;
+    }
+
+    // Appends the encoded response to the outbound queue, a list of pooled chunks kept ready for writing
+    // (position at the first unwritten byte, limit at the last queued one). A client that lets more than
+    // the loop's limit pile up is not reading its responses and is disconnected.
+    private void enqueue(byte[] source, int length) throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        if (queuedBytes + length > eventLoop.getMaxQueuedBytes()) {
+            Log.warn("TCP CLIENT DISCONNECTED: " + queuedBytes + " bytes of responses unread");
+            close();
+            throw new IOException("outbound queue over limit");
+        }
+        for (int offset = 0; offset < length; ) {
+            ByteBuffer tail = outbound.peekLast();
+            if (tail == null || tail.limit() == tail.capacity()) {
+                tail = outboundChunks.acquire();
+                tail.limit(0);
+                outbound.add(tail);
+            }
+            int count = Math.min(length - offset, tail.capacity() - tail.limit());
+            int at = tail.limit();
+            tail.limit(at + count);
+            tail.put(at, source, offset, count);
+            offset += count;
+        }
+        queuedBytes += length;
+        if (!flushScheduled) {
+            flushScheduled = true;
+            eventLoop.scheduleFlush(this);
+        }
+    }
+
+    // Called on the event loop. Writes the queued chunks with gathering writes, so every response queued
+    // since the last flush goes out in as few syscalls as possible. Reading from a client is paused
+    // while half its limit is still queued, so a client that sends faster than it reads is slowed down.
+    public void flushOutbound() throws IOException {
+        sendLock.lock();
+        try {
+            flushScheduled = false;
+            if (!channel.isOpen()) {
+                return;
+            }
+            while (!outbound.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer chunk : outbound) {
+                    gather[count++] = chunk;
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                }
+                queuedBytes -= (int) channel.write(gather, 0, count);
+                boolean socketFull = gather[count - 1].hasRemaining();
+                while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining()) {
+                    outboundChunks.release(outbound.pollFirst());
+                }
+                if (socketFull) {
+                    break;
+                }
+            }
+            Arrays.fill(gather, null);
+            if (selectionKey.isValid()) {
+                int ops = queuedBytes * 2 < eventLoop.getMaxQueuedBytes() ? SelectionKey.OP_READ : 0;
+                selectionKey.interestOps(outbound.isEmpty() ? ops : ops | SelectionKey.OP_WRITE);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // Responses queued just before closing, such as the reply to GDBY, get one last non-blocking write
+    private void writeQueuedBeforeClose() {
+        sendLock.lock();
+        try {
+            if (channel.isOpen() && !outbound.isEmpty()) {
+                channel.write(outbound.toArray(new ByteBuffer[0]));
+            }
+        } catch (IOException e) {
+            // The client is gone already
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void releaseOutbound() {
+        sendLock.lock();
+        try {
+            ByteBuffer chunk;
+            while ((chunk = outbound.pollFirst()) != null) {
+                outboundChunks.release(chunk);
+            }
+            queuedBytes = 0;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
     public void close() {
-        if (isTcpConnection()) {
+        if (!closed) {
+            closedAt = System.currentTimeMillis();
+            closed = true;
+        }
+        if (isChannelConnection()) {
+            try {
+                writeQueuedBeforeClose();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            releaseOutbound();
+        } else if (isTcpConnection()) {
             try {
                 tcpSocket.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         } else if (isUdpConnection()) {
-            udpSocket.close();
+            // The channel is shared by every UDP client, so closing only forgets this one. A reliable
+            // stream is kept until its last replies are ACKed, so the ACKs still find it.
+            if (reliableUdp != null) {
+                reliableUdp.whenDrained(() -> udpSessions.remove(this));
+            } else {
+                udpSessions.remove(this);
+            }
         }
     }
 }
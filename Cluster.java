@@ -0,0 +1,246 @@
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// A fixed set of server nodes that share the games between them. Every game ID carries one of SHARDS
+// shards (see Games), and each shard belongs to the node a consistent-hash ring maps it to, so any node
+// can tell from an ID alone which node holds the game. Each node gets many points on the ring, which
+// spreads the shards evenly and means adding a node only moves the shards it takes over.
+class Cluster {
+    public static final int SHARDS = 256;
+    private static final int POINTS_PER_NODE = 160;
+    private static final int PEER_TIMEOUT_MILLIS = 2000;
+
+    private final List<InetSocketAddress> nodes;
+    private final int self;
+    private final int[] owners;
+    private final Peer[] peers;
+
+    public Cluster(List<InetSocketAddress> nodes, int self) {
+        this.nodes = nodes;
+        this.self = self;
+        TreeMap<Integer, Integer> ring = new TreeMap<>();
+        for (int node = 0; node < nodes.size(); node++) {
+            String name = nodes.get(node).getHostString() + ":" + nodes.get(node).getPort();
+            for (int point = 0; point < POINTS_PER_NODE; point++) {
+                ring.put(mix((name + "#" + point).hashCode()), node);
+            }
+        }
+        this.owners = new int[SHARDS];
+        for (int shard = 0; shard < SHARDS; shard++) {
+            Map.Entry<Integer, Integer> owner = ring.ceilingEntry(mix(shard * 0x9E3779B9));
+            owners[shard] = (owner != null ? owner : ring.firstEntry()).getValue();
+        }
+        this.peers = new Peer[nodes.size()];
+        for (int node = 0; node < nodes.size(); node++) {
+            peers[node] = new Peer(nodes.get(node));
+        }
+    }
+
+    // --cluster=host:port,host:port,... lists every node, the same on each of them, and --node is this
+    // node's position in that list. Returns null when the server runs on its own.
+    public static Cluster fromConfig(ServerConfig config) {
+        String members = config.getString("cluster", null);
+        if (members == null) {
+            return null;
+        }
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (String member : members.split(",")) {
+            int colon = member.lastIndexOf(':');
+            nodes.add(InetSocketAddress.createUnresolved(member.substring(0, colon),
+                Integer.parseInt(member.substring(colon + 1))));
+        }
+        int self = config.getInt("node", 0);
+        if (self < 0 || self >= nodes.size()) {
+            throw new IllegalArgumentException("--node must be between 0 and " + (nodes.size() - 1));
+        }
+        return new Cluster(nodes, self);
+    }
+
+    public int getSelf() {
+        return self;
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    public boolean isLocal(int shard) {
+        return owners[shard] == self;
+    }
+
+    public int[] getOwnedShards() {
+        return shardsOwnedBy(self);
+    }
+
+    public int[] shardsOwnedBy(int node) {
+        int count = 0;
+        for (int owner : owners) {
+            if (owner == node) {
+                count++;
+            }
+        }
+        int[] owned = new int[count];
+        for (int shard = 0, i = 0; shard < SHARDS; shard++) {
+            if (owners[shard] == node) {
+                owned[i++] = shard;
+            }
+        }
+        return owned;
+    }
+
+    // host:port of the node that owns the shard, as sent to clients in RDIR
+    public String getAddressOf(int shard) {
+        InetSocketAddress node = nodes.get(owners[shard]);
+        return node.getHostString() + ":" + node.getPort();
+    }
+
+    // Joins the nodes' lists in node order, each in creation order, and cuts the requested page out of
+    // the result. The other nodes are asked all at once, each on its peer's own thread, for as many IDs
+    // as the page could need, so neither the caller nor a slow node holds up the rest. A node that has
+    // not answered within PEER_TIMEOUT_MILLIS is left out rather than failing the whole list.
+    public CompletableFuture<String> listGames(String type, int offset, int limit, Games games) {
+        int wanted = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+        String request = "LIST " + type + (wanted == Integer.MAX_VALUE ? " " : " 0 " + wanted + " ") + "LOCAL";
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PEER_TIMEOUT_MILLIS);
+        List<CompletableFuture<String>> parts = new ArrayList<>();
+        for (int node = 0; node < nodes.size(); node++) {
+            if (node == self) {
+                parts.add(CompletableFuture.completedFuture(games.getGamesByType(type, 0, wanted)));
+            } else {
+                parts.add(peers[node].list(node, request, deadline)
+                    .completeOnTimeout("", PEER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            }
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<String> gameIds = new ArrayList<>();
+            for (CompletableFuture<String> part : parts) {
+                for (String gameId : part.join().trim().split(" ")) {
+                    if (gameIds.size() == wanted) {
+                        break;
+                    }
+                    if (!gameId.isEmpty()) {
+                        gameIds.add(gameId);
+                    }
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = offset; i < gameIds.size(); i++) {
+                sb.append(" ").append(gameIds.get(i));
+            }
+            return sb.toString();
+        });
+    }
+
+    // Spreads consecutive values over the whole int range (the murmur3 finalizer)
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // One TTTP connection to another node, opened on first use and reopened after a failure. Requests
+    // run one at a time on the peer's own thread, which owns the connection.
+    private static final class Peer {
+        private final InetSocketAddress address;
+        private final ExecutorService thread;
+        private Socket socket;
+        private BufferedReader reader;
+        private OutputStream out;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+            this.thread = Executors.newSingleThreadExecutor(r -> {
+                Thread peerThread = new Thread(r, "cluster-peer-" + address.getPort());
+                peerThread.setDaemon(true);
+                return peerThread;
+            });
+        }
+
+        // The node's part of a LIST, or an empty one if it cannot answer before the deadline
+        CompletableFuture<String> list(int node, String line, long deadline) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    String reply = request(line, deadline);
+                    if (!reply.startsWith("GAMS") || reply.startsWith("GAMS_ERR")) {
+                        Log.warn("node " + node + " answered LIST with " + reply);
+                        return "";
+                    }
+                    return reply.substring(4);
+                } catch (IOException e) {
+                    Log.warn("node " + node + " did not answer LIST: " + e.getMessage());
+                    return "";
+                }
+            }, thread);
+        }
+
+        // A connection kept from an earlier request may have been closed by the other node since, so a
+        // failure on it is retried once on a new connection
+        private String request(String line, long deadline) throws IOException {
+            boolean reused = socket != null;
+            try {
+                return exchange(line, deadline);
+            } catch (IOException e) {
+                close();
+                if (!reused) {
+                    throw e;
+                }
+            }
+            try {
+                return exchange(line, deadline);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private String exchange(String line, long deadline) throws IOException {
+            int remainingMillis = (int) TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                throw new SocketTimeoutException("deadline passed");
+            }
+            if (socket == null) {
+                socket = new Socket();
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), remainingMillis);
+                socket.setTcpNoDelay(true);
+                reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                out = socket.getOutputStream();
+            }
+            socket.setSoTimeout(remainingMillis);
+            out.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String reply = reader.readLine();
+            if (reply == null) {
+                throw new EOFException("connection closed");
+            }
+            return reply;
+        }
+
+        private void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                socket = null;
+            }
+        }
+    }
+}
@@ -1,32 +1,77 @@
 import java.util.*;
 import java.util.Random;
+import java.util.function.Consumer;
 
 class Game {
-    private static final int[][] WINNING_CONDITIONS = {
-      {0, 1, 2}, {3, 4, 5}, {6, 7, 8}, // rows
-      {0, 3, 6}, {1, 4, 7}, {2, 5, 8}, // columns
-      {0, 4, 8}, {2, 4, 6} // diagonals
-    };
+    public static final int DEFAULT_SIZE = 3;
+    public static final int MAX_SIZE = 19;
 
     private String gameId;
+    private long sequence;
     private List<String> players;
     private boolean isDone;
     private int firstPlayer;
     private String currentPlayer;
-    private List<String> board;
+    private Board board;
     private String winner;
+    private long finishedAt;
+    private short[] moves;
+    private int moveCount;
+    private Consumer<Game> finishListener;
+    private byte[] bordSnapshot;
+    // The TTTP v2 forms of a BORD snapshot, for whichever snapshot a v2 client was last sent
+    private volatile TttpV2.Converted bordSnapshotV2;
+    private final GameMailbox mailbox = new GameMailbox();
 
     public Game(String gameId) {
+        this(gameId, DEFAULT_SIZE, DEFAULT_SIZE);
+    }
+
+    public Game(String gameId, int size, int winLength) {
+        this(gameId, 0, size, winLength);
+    }
+
+    public Game(String gameId, long sequence, int size, int winLength) {
         this.gameId = gameId;
+        this.sequence = sequence;
         this.players = new ArrayList<>();
-        this.board = new ArrayList<>(Arrays.asList("*", "*", "*", "*", "*", "*", "*", "*", "*"));
+        this.board = Board.create(size, winLength);
         this.isDone = false;
+        this.moves = new short[board.getCellCount()];
+    }
+
+    // Rebuilds a game from its archived or snapshotted record by replaying its moves
+    public static Game restore(String gameId, long sequence, int size, int winLength, List<String> players,
+                               int firstPlayer, short[] moves, String currentPlayer, String winner,
+                               boolean done, long finishedAt) {
+        Game game = new Game(gameId, sequence, size, winLength);
+        game.players.addAll(players);
+        game.firstPlayer = firstPlayer;
+        for (int i = 0; i < moves.length; i++) {
+            game.board.place(moves[i], i % 2 == 0 ? Board.X : Board.O);
+            game.moves[game.moveCount++] = moves[i];
+        }
+        game.currentPlayer = currentPlayer;
+        game.winner = done ? winner : null;
+        game.isDone = done;
+        game.finishedAt = done ? finishedAt : 0;
+        return game;
+    }
+
+    // Requests naming the game are run through its mailbox, one at a time
+    public GameMailbox getMailbox() {
+        return mailbox;
     }
 
     public String getGameId() {
         return gameId;
     }
 
+    // Games are numbered in the order they were created
+    public long getSequence() {
+        return sequence;
+    }
+
     public List<String> getPlayers() {
         return players;
     }
@@ -39,17 +84,23 @@ class Game {
         int currentPlayerIndex = players.indexOf(currentPlayer);
         currentPlayerIndex = (currentPlayerIndex + 1) % players.size();
         currentPlayer = players.get(currentPlayerIndex);
+        bordSnapshot = null;
     }
 
     public void addPlayer(String clientId) {
         players.add(clientId);
-        
+        bordSnapshot = null;
     }
 
     public void chooseStartingPlayer() {
         Random rand = new Random();
-        firstPlayer = rand.nextInt(players.size());
+        chooseStartingPlayer(rand.nextInt(players.size()));
+    }
+
+    public void chooseStartingPlayer(int firstPlayer) {
+        this.firstPlayer = firstPlayer;
         currentPlayer = players.get(firstPlayer);
+        bordSnapshot = null;
     }
 
     public int getFirstPlayer() {
@@ -74,88 +125,108 @@ class Game {
           winner = player;
         }
       }
+      bordSnapshot = null;
     }
 
     public boolean isOpen() {
         return !isFull() && !isDone;
     }
 
+    // Called once, when the game first finishes
+    public void setFinishListener(Consumer<Game> finishListener) {
+        this.finishListener = finishListener;
+    }
+
+    // Wall-clock millis when the game finished, 0 while it is still going
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
     public void finishGame() {
+        if (isDone) {
+            return;
+        }
         isDone = true;
+        bordSnapshot = null;
+        finishedAt = System.currentTimeMillis();
+        if (finishListener != null) {
+            finishListener.accept(this);
+        }
     }
 
-    public boolean makeMove(int index) {
-      String element = "X";
-      String firstPlayerId = players.get(firstPlayer);
-      if (!currentPlayer.equals(firstPlayerId)) {
-        element = "O";
-      }
+    // The first player always plays X
+    public int getCurrentMark() {
+      return currentPlayer.equals(players.get(firstPlayer)) ? Board.X : Board.O;
+    }
 
-      int fixedIndex = index - 1;
-      if (!board.get(fixedIndex).equals("*")) {
+    public boolean makeMove(int index) {
+      int mark = getCurrentMark();
+      if (!board.place(index, mark)) {
         return false;
       }
-      board.set(fixedIndex, element);
-      checkForWinner();
+      moves[moveCount++] = (short) index;
+      bordSnapshot = null;
+      checkForWinner(index);
       return true;
     }
 
+    // x counts columns from the left and y counts rows from the bottom, both starting at 1
     public boolean makeMove(int x, int y) {
-      int[][] indicies = {
-        {1, 2, 3},
-        {4, 5, 6},
-        {7, 8, 9}
-      };
-
-      int[] row = indicies[3 - y];
-      int index = row[x - 1];
-
-      String element = "X";
-      String firstPlayerId = players.get(firstPlayer);
-      if (!currentPlayer.equals(firstPlayerId)) {
-        element = "O";
+      int size = board.getSize();
+      if (x < 1 || x > size || y < 1 || y > size) {
+        throw new IndexOutOfBoundsException("coordinate " + x + "," + y);
       }
+      return makeMove((size - y) * size + x);
+    }
 
-      int fixedIndex = index - 1;
-      if (!board.get(fixedIndex).equals("*")) {
-        return false;
-      }
-      board.set(fixedIndex, element);
-      checkForWinner();
-      return true;
+    // The encoded BORD line for the game as it is now, or null once anything has changed since it was
+    // built. Callers run in the game's mailbox; the array itself is never modified, so it can be sent
+    // to any number of clients from anywhere.
+    public byte[] getBordSnapshot() {
+      return bordSnapshot;
+    }
+
+    public void setBordSnapshot(byte[] bordSnapshot) {
+      this.bordSnapshot = bordSnapshot;
+    }
+
+    public TttpV2.Converted getBordSnapshotV2() {
+      return bordSnapshotV2;
     }
 
-    public List<String> getBoard() {
+    public void setBordSnapshotV2(TttpV2.Converted bordSnapshotV2) {
+      this.bordSnapshotV2 = bordSnapshotV2;
+    }
+
+    public Board getBoard() {
       return board;
     }
 
-    public void checkForWinner() {
-      for (int[] slots : WINNING_CONDITIONS) {
-        String slot1 = board.get(slots[0]);
-        String slot2 = board.get(slots[1]);
-        String slot3 = board.get(slots[2]);
+    // 0 before the first move
+    public int getLastMove() {
+      return moveCount == 0 ? 0 : moves[moveCount - 1];
+    }
+
+    // The slots played so far, in order; the first player's moves are the even entries
+    public short[] getMoves() {
+      return Arrays.copyOf(moves, moveCount);
+    }
 
-        if (!slot1.equals("*") && slot1.equals(slot2) && slot2.equals(slot3)) {
-          if (slot1.equals("X")) {
-            winner = players.get(firstPlayer);
-          } else {
-            winner = players.get(1 - firstPlayer);
-          }
-          finishGame();
+    public void checkForWinner(int lastIndex) {
+      if (board.isWinningMove(lastIndex)) {
+        if (board.getMark(lastIndex) == Board.X) {
+          winner = players.get(firstPlayer);
+        } else {
+          winner = players.get(1 - firstPlayer);
         }
+        finishGame();
+        return;
       }
       checkForStalemate();
     }
 
     private void checkForStalemate() {
-      boolean movesAvailable = false;
-      for (int i = 0; i < board.size(); i++) {
-        if (board.get(i).equals("*")) {
-          movesAvailable = true;
-        }
-      }
-
-      if (!movesAvailable) {
+      if (board.isFull()) {
         winner = "";
         finishGame();
       }
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.util.*;
+
+// Append-only file of finished games. Games are written in batches, each a record count and byte length
+// followed by the records, and the archive only remembers the file offset and sequence range of each
+// batch. Looking a game up reads back the batches whose range covers it, so memory grows with the
+// number of batches rather than the number of games.
+class GameArchive {
+    private static final int NO_PLAYER = -1;
+
+    private final File file;
+    private final List<long[]> batches; // {offset, byte length, lowest sequence, highest sequence}
+    private final DataOutputStream output;
+    private long length;
+
+    public GameArchive(File file) throws IOException {
+        this.file = file;
+        this.batches = new ArrayList<>();
+        loadBatches();
+        this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    // Writes and flushes the games as one batch. Finished games no longer change, and Games only lists a
+    // game as finished once its final state is set, so they are read outside their mailboxes.
+    public synchronized void append(List<Game> games) throws IOException {
+        if (games.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(bytes);
+        long lowest = Long.MAX_VALUE;
+        long highest = Long.MIN_VALUE;
+        for (Game game : games) {
+            writeGame(records, game);
+            lowest = Math.min(lowest, game.getSequence());
+            highest = Math.max(highest, game.getSequence());
+        }
+        output.writeInt(games.size());
+        output.writeInt(bytes.size());
+        bytes.writeTo(output);
+        output.flush();
+        synchronized (batches) {
+            batches.add(new long[] {length + 8, bytes.size(), lowest, highest});
+        }
+        length += 8 + bytes.size();
+    }
+
+    // -1 for an empty archive
+    public long getHighestSequence() {
+        long highest = -1;
+        synchronized (batches) {
+            for (long[] batch : batches) {
+                highest = Math.max(highest, batch[3]);
+            }
+        }
+        return highest;
+    }
+
+    public Game find(String gameId, long sequence) {
+        List<long[]> candidates = new ArrayList<>();
+        synchronized (batches) {
+            for (long[] batch : batches) {
+                if (batch[2] <= sequence && sequence <= batch[3]) {
+                    candidates.add(batch);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            for (long[] batch : candidates) {
+                byte[] records = new byte[(int) batch[1]];
+                in.seek(batch[0]);
+                in.readFully(records);
+                DataInputStream recordInput = new DataInputStream(new ByteArrayInputStream(records));
+                while (recordInput.available() > 0) {
+                    Game game = readGame(recordInput);
+                    if (game.getGameId().equals(gameId)) {
+                        return game;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private void loadBatches() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int count;
+                try {
+                    count = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int byteLength = in.readInt();
+                byte[] records = new byte[byteLength];
+                in.readFully(records);
+                DataInputStream recordInput = new DataInputStream(new ByteArrayInputStream(records));
+                long lowest = Long.MAX_VALUE;
+                long highest = Long.MIN_VALUE;
+                for (int i = 0; i < count; i++) {
+                    long sequence = readGame(recordInput).getSequence();
+                    lowest = Math.min(lowest, sequence);
+                    highest = Math.max(highest, sequence);
+                }
+                batches.add(new long[] {length + 8, byteLength, lowest, highest});
+                length += 8 + byteLength;
+            }
+        } catch (EOFException e) {
+            // A batch cut short by a crash is dropped so the next batch starts where the last whole one ended
+            Log.warn("dropping incomplete batch at the end of " + file);
+            try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+                truncated.setLength(length);
+            }
+        }
+    }
+
+    // sequence, ID, size, win length, players, first and current player, winner, finish time, moves
+    static void writeGame(DataOutputStream out, Game game) throws IOException {
+        List<String> players = game.getPlayers();
+        out.writeLong(game.getSequence());
+        out.writeUTF(game.getGameId());
+        out.writeByte(game.getBoard().getSize());
+        out.writeByte(game.getBoard().getWinLength());
+        out.writeByte(players.size());
+        for (String player : players) {
+            out.writeUTF(player);
+        }
+        out.writeByte(game.getFirstPlayer());
+        out.writeByte(game.getCurrentPlayer() == null ? NO_PLAYER : players.indexOf(game.getCurrentPlayer()));
+        out.writeUTF(game.getWinner() == null ? "" : game.getWinner());
+        out.writeLong(game.getFinishedAt());
+        short[] moves = game.getMoves();
+        out.writeShort(moves.length);
+        for (short move : moves) {
+            out.writeShort(move);
+        }
+    }
+
+    private static Game readGame(DataInputStream in) throws IOException {
+        return readGame(in, true);
+    }
+
+    static Game readGame(DataInputStream in, boolean done) throws IOException {
+        long sequence = in.readLong();
+        String gameId = in.readUTF();
+        int size = in.readByte();
+        int winLength = in.readByte();
+        List<String> players = new ArrayList<>();
+        int playerCount = in.readByte();
+        for (int i = 0; i < playerCount; i++) {
+            players.add(in.readUTF());
+        }
+        int firstPlayer = in.readByte();
+        int currentPlayer = in.readByte();
+        String winner = in.readUTF();
+        long finishedAt = in.readLong();
+        short[] moves = new short[in.readShort()];
+        for (int i = 0; i < moves.length; i++) {
+            moves[i] = in.readShort();
+        }
+        return Game.restore(gameId, sequence, size, winLength, players, firstPlayer, moves,
+            currentPlayer == NO_PLAYER ? null : players.get(currentPlayer), winner, done, finishedAt);
+    }
+
+    public void close() throws IOException {
+        output.close();
+    }
+}
@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Moves games that finished more than a TTL ago out of the heap and into the archive. Sweeps run on
+// their own thread and write whole batches, so requests never wait on the archive file.
+class GameEvictor {
+    private static final int BATCH_SIZE = 1024;
+
+    private final Games games;
+    private final GameArchive archive;
+    private final long ttlMillis;
+    private final Consumer<Game> evictionListener;
+
+    public GameEvictor(Games games, GameArchive archive, long ttlMillis, Consumer<Game> evictionListener) {
+        this.games = games;
+        this.archive = archive;
+        this.ttlMillis = ttlMillis;
+        this.evictionListener = evictionListener;
+    }
+
+    public void start(long intervalMillis) {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "game-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch (IOException e) {
+                // The games stay in memory and are tried again on the next sweep
+                e.printStackTrace();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Only finished games are ever visited, and they leave once evicted, so a sweep costs O(games that
+    // finished within the TTL) no matter how many games the server has seen
+    public int sweep() throws IOException {
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        List<Game> batch = new ArrayList<>();
+        int evicted = 0;
+        for (Game game : games.getFinishedGames()) {
+            if (game.getFinishedAt() <= cutoff) {
+                batch.add(game);
+                if (batch.size() == BATCH_SIZE) {
+                    evicted += evict(batch);
+                    batch.clear();
+                }
+            }
+        }
+        return evicted + evict(batch);
+    }
+
+    private int evict(List<Game> batch) throws IOException {
+        archive.append(batch);
+        for (Game game : batch) {
+            games.evict(game);
+            evictionListener.accept(game);
+        }
+        return batch.size();
+    }
+}
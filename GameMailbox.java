@@ -0,0 +1,81 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs one game's commands one at a time without making any thread wait for the game. A command for an
+// idle game runs right away on the calling thread. A command for a busy game is queued, and the thread
+// already running the game's commands runs it before letting go, so each game behaves like a single
+// writer while unrelated games run on whichever threads their requests arrive on. A thread runs at most
+// MAX_BATCH queued commands before it hands the rest of a busy game to the mailbox threads, so an event
+// loop is never kept away from its own connections by someone else's game.
+class GameMailbox {
+    private static final int MAX_BATCH = 32;
+    private static final ExecutorService overflow = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "game-mailbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final Queue<Runnable> queued = new ConcurrentLinkedQueue<>();
+    // Commands queued plus the one running, if any
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // True when the game was idle and the caller may run its command now. The caller must call release()
+    // when the command is done.
+    public boolean tryAcquire() {
+        return pending.compareAndSet(0, 1);
+    }
+
+    public void release() {
+        if (pending.decrementAndGet() != 0) {
+            runQueued();
+        }
+    }
+
+    // Runs the command now if the game is idle, otherwise after the commands already queued, for work
+    // on a game that does not come from a request naming it (forfeits, bots, journal snapshots)
+    public void execute(Runnable command) {
+        if (tryAcquire()) {
+            try {
+                command.run();
+            } finally {
+                release();
+            }
+        } else {
+            enqueue(command);
+        }
+    }
+
+    // Queues a command behind the running one. If the game went idle in the meantime the caller runs
+    // the queue itself.
+    public void enqueue(Runnable command) {
+        queued.add(command);
+        if (pending.getAndIncrement() == 0) {
+            runQueued();
+        }
+    }
+
+    // Every increment of pending follows the add of its command, so the queue is never empty here
+    private void runQueued() {
+        int budget = MAX_BATCH;
+        do {
+            if (budget-- == 0) {
+                overflow.execute(this::runQueued);
+                return;
+            }
+            Runnable command = queued.poll();
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        } while (pending.decrementAndGet() != 0);
+    }
+
+    public int getQueued() {
+        return queued.size();
+    }
+}
@@ -1,11 +1,62 @@
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Every game in play. Once a game is registered, every read or write of its state runs in its mailbox
+// (see GameMailbox), so games share no lock and requests for different games never wait on each other.
 class Games {
+    private static final String GAME_ID_PREFIX = "GID";
+
     private Map<String, Game> games;
-    private static long gameIdCounter = 0;
+    // Every game is in exactly one of the open, current and finished indexes, keyed by its sequence
+    // number so LIST pages come out in creation order
+    private final ConcurrentNavigableMap<Long, Game> allGames;
+    private final ConcurrentNavigableMap<Long, Game> openGames;
+    private final ConcurrentNavigableMap<Long, Game> currentGames;
+    private final ConcurrentNavigableMap<Long, Game> finishedGames;
+    private volatile GameArchive archive;
+    private static final AtomicLong gameIdCounter = new AtomicLong();
+    private int shardCount = 1;
+    private int[] ownedShards = {0};
 
     public Games() {
-        this.games = new HashMap<>();
+        this.games = new ConcurrentHashMap<>();
+        this.allGames = new ConcurrentSkipListMap<>();
+        this.openGames = new ConcurrentSkipListMap<>();
+        this.currentGames = new ConcurrentSkipListMap<>();
+        this.finishedGames = new ConcurrentSkipListMap<>();
+    }
+
+    // Spreads this node's new games over the shards it owns. A game's sequence number is
+    // n * shardCount + shard, so the shard can be read back from the game ID. Set before any game is
+    // created or replayed.
+    public void setShards(int shardCount, int[] ownedShards) {
+        this.shardCount = shardCount;
+        this.ownedShards = ownedShards;
+    }
+
+    // The shard a game ID belongs to, or -1 if it is not a game ID
+    public int shardOf(String gameId) {
+        if (!gameId.startsWith(GAME_ID_PREFIX)) {
+            return -1;
+        }
+        try {
+            return (int) (Long.parseLong(gameId.substring(GAME_ID_PREFIX.length())) % shardCount);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private long nextSequence() {
+        long n = gameIdCounter.getAndIncrement();
+        return n * shardCount + ownedShards[(int) (n % ownedShards.length)];
+    }
+
+    // Keeps new sequence numbers past one that is already taken
+    private void sequenceUsed(long sequence) {
+        gameIdCounter.accumulateAndGet(sequence / shardCount + 1, Math::max);
     }
 
     public Map<String, Game> getGames() {
@@ -16,24 +67,107 @@ class Games {
         return games.get(gameId);
     }
 
+    // New game IDs continue after the archived ones so an ID never names two games
+    public void setArchive(GameArchive archive) {
+        this.archive = archive;
+        long highestSequence = archive.getHighestSequence();
+        if (highestSequence >= 0) {
+            sequenceUsed(highestSequence);
+        }
+    }
+
+    // Like getGame, but also finds games that have been evicted to the archive
+    public Game findGame(String gameId) {
+        Game game = games.get(gameId);
+        GameArchive currentArchive = archive;
+        if (game != null || currentArchive == null || !gameId.startsWith(GAME_ID_PREFIX)) {
+            return game;
+        }
+        try {
+            return currentArchive.find(gameId, Long.parseLong(gameId.substring(GAME_ID_PREFIX.length())));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public Collection<Game> getFinishedGames() {
+        return finishedGames.values();
+    }
+
+    // Forgets a finished game; it must have been archived first for STAT to still find it
+    public void evict(Game game) {
+        finishedGames.remove(game.getSequence());
+        allGames.remove(game.getSequence());
+        games.remove(game.getGameId());
+    }
+
     public Game createGame(String clientId) {
-        String gameId = createGameID();
-        Game newGame = new Game(gameId);
+        Game newGame = newGame(clientId, Game.DEFAULT_SIZE, Game.DEFAULT_SIZE);
+        restoreGame(newGame);
+        return newGame;
+    }
+
+    // A game no other request can see yet, so it can be journaled before restoreGame registers it
+    public Game newGame(String clientId, int size, int winLength) {
+        long sequence = nextSequence();
+        Game newGame = new Game(createGameID(sequence), sequence, size, winLength);
+        newGame.addPlayer(clientId);
+        return newGame;
+    }
+
+    // Creates the game with a given sequence number, as when replaying the journal
+    public Game createGame(long sequence, String clientId, int size, int winLength) {
+        Game newGame = new Game(createGameID(sequence), sequence, size, winLength);
         newGame.addPlayer(clientId);
-        games.put(gameId, newGame);
+        restoreGame(newGame);
         return newGame;
     }
 
-    public static synchronized String createGameID(){
-        return "GID" + gameIdCounter++;
+    // A game whose players were paired before it existed, so it is never listed as open and nobody
+    // else can join it first. Like newGame, it is registered by restoreGame.
+    public Game newMatchedGame(String clientId, String opponentId) {
+        Game newGame = newGame(clientId, Game.DEFAULT_SIZE, Game.DEFAULT_SIZE);
+        newGame.addPlayer(opponentId);
+        newGame.chooseStartingPlayer();
+        return newGame;
+    }
+
+    // Registers a new game or one rebuilt from a snapshot, indexed by the state it is in
+    public void restoreGame(Game game) {
+        long sequence = game.getSequence();
+        sequenceUsed(sequence);
+        game.setFinishListener(this::gameFinished);
+        games.put(game.getGameId(), game);
+        allGames.put(sequence, game);
+        if (game.isDone()) {
+            finishedGames.put(sequence, game);
+        } else if (game.isFull()) {
+            currentGames.put(sequence, game);
+        } else {
+            openGames.put(sequence, game);
+        }
+    }
+
+    public static String createGameID(long sequence) {
+        return GAME_ID_PREFIX + sequence;
     }
 
+    // Runs in the game's mailbox, from wherever the game was finished
+    private void gameFinished(Game game) {
+        openGames.remove(game.getSequence());
+        currentGames.remove(game.getSequence());
+        finishedGames.put(game.getSequence(), game);
+    }
+
+    // Runs in the game's mailbox
     public boolean addPlayerToGame(String playerId, String gameId) {
         Game game = games.get(gameId);
         if (game != null && !game.isFull() && !game.isDone()) {
             game.addPlayer(playerId);
             if (game.isFull()) {
                 game.chooseStartingPlayer();
+                openGames.remove(game.getSequence());
+                currentGames.put(game.getSequence(), game);
             }
             return true;
         }
@@ -41,16 +175,47 @@ class Games {
     }
 
     public String getGamesByType(String type) {
-        StringBuilder sb = new StringBuilder();
-        for (Game game : games.values()) {
-            if (type.equals("OPEN") && game.isOpen()) {
-                sb.append(" ").append(game.getGameId());
-            } else if (type.equals("CURR") && game.isFull() && !game.isDone()) {
-                sb.append(" ").append(game.getGameId());
-            } else if (type.equals("ALL")) {
-                sb.append(" ").append(game.getGameId());
+        return getGamesByType(type, 0, Integer.MAX_VALUE);
+    }
+
+    // Walks only the index for the requested state, so a page costs O(offset + limit) however many
+    // games have been played. Each ID is preceded by a space.
+    public String getGamesByType(String type, int offset, int limit) {
+        return appendGamesByType(new StringBuilder(), type, offset, limit).toString();
+    }
+
+    // Like getGamesByType, but appends the IDs to a response being built
+    public StringBuilder appendGamesByType(StringBuilder sb, String type, int offset, int limit) {
+        int skipped = 0;
+        int listed = 0;
+        for (Game game : indexFor(type).values()) {
+            if (listed == limit) {
+                break;
             }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            sb.append(' ').append(game.getGameId());
+            listed++;
+        }
+        return sb;
+    }
+
+    // OPEN, CURR, FINI or ALL. The indexes count by walking, so this is for occasional callers such as
+    // the metrics endpoint rather than per request.
+    public int countGames(String type) {
+        return type.equals("FINI") ? finishedGames.size() : indexFor(type).size();
+    }
+
+    private ConcurrentNavigableMap<Long, Game> indexFor(String type) {
+        switch (type) {
+            case "OPEN":
+                return openGames;
+            case "CURR":
+                return currentGames;
+            default:
+                return allGames;
         }
-        return sb.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,111 @@
+// An N x N board for k-in-a-row variants, one byte per cell
+class GridBoard implements Board {
+    private static final int[][] DIRECTIONS = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+
+    private final int size;
+    private final int winLength;
+    private final byte[] cells;
+    private int placed;
+
+    public GridBoard(int size, int winLength) {
+        this.size = size;
+        this.winLength = winLength;
+        this.cells = new byte[size * size];
+    }
+
+    public static GridBoard copyOf(Board board) {
+        GridBoard copy = new GridBoard(board.getSize(), board.getWinLength());
+        for (int i = 1; i <= board.getCellCount(); i++) {
+            int mark = board.getMark(i);
+            if (mark != EMPTY) {
+                copy.place(i, mark);
+            }
+        }
+        return copy;
+    }
+
+    public GridBoard copy() {
+        GridBoard copy = new GridBoard(size, winLength);
+        System.arraycopy(cells, 0, copy.cells, 0, cells.length);
+        copy.placed = placed;
+        return copy;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int getWinLength() {
+        return winLength;
+    }
+
+    @Override
+    public int getCellCount() {
+        return cells.length;
+    }
+
+    @Override
+    public int getMark(int index) {
+        return cells[index - 1];
+    }
+
+    @Override
+    public boolean place(int index, int mark) {
+        if (index < 1 || index > cells.length) {
+            throw new IndexOutOfBoundsException("slot " + index);
+        }
+        if (cells[index - 1] != EMPTY) {
+            return false;
+        }
+        cells[index - 1] = (byte) mark;
+        placed++;
+        return true;
+    }
+
+    public void clear(int index) {
+        if (cells[index - 1] != EMPTY) {
+            cells[index - 1] = EMPTY;
+            placed--;
+        }
+    }
+
+    // Counts matching marks outwards from the slot in both directions of each of the four lines
+    // through it, so the cost is O(winLength) no matter how large the board is
+    @Override
+    public boolean isWinningMove(int index) {
+        int row = (index - 1) / size;
+        int column = (index - 1) % size;
+        byte mark = cells[index - 1];
+        if (mark == EMPTY) {
+            return false;
+        }
+        for (int[] direction : DIRECTIONS) {
+            int count = 1
+                + countInDirection(row, column, direction[0], direction[1], mark)
+                + countInDirection(row, column, -direction[0], -direction[1], mark);
+            if (count >= winLength) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int countInDirection(int row, int column, int rowStep, int columnStep, byte mark) {
+        int count = 0;
+        int r = row + rowStep;
+        int c = column + columnStep;
+        while (count < winLength - 1 && r >= 0 && r < size && c >= 0 && c < size && cells[r * size + c] == mark) {
+            count++;
+            r += rowStep;
+            c += columnStep;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isFull() {
+        return placed == cells.length;
+    }
+}
@@ -0,0 +1,709 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load generator. Simulated players are paired up; in every pair one player creates a game and
+// the other joins it, then both play random legal moves until the game ends, say goodbye and start
+// over with a new connection. Each turn is a STAT to read the board followed by a MOVE. The players run
+// as state machines on a few selector threads, so thousands of them need only a handful of threads.
+//
+// The number of players follows a schedule of steps, each ramped up to over a few seconds and then held,
+// and every report line shows the throughput and per-verb latency of the last interval, so the step at
+// which latency climbs while throughput stops growing is the server's saturation point.
+public class LoadGenerator {
+    private static final String[] VERBS = {"HELO", "CREA", "JOIN", "STAT", "MOVE", "GDBY", "MTCH"};
+    private static final int HELO = 0;
+    private static final int CREA = 1;
+    private static final int JOIN = 2;
+    private static final int STAT = 3;
+    private static final int MOVE = 4;
+    private static final int GDBY = 5;
+    private static final int MTCH = 6;
+    private static final int NONE = -1;
+
+    private static final long REQUEST_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long RESTART_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final InetSocketAddress server;
+    private final long moveDelayNanos;
+    private final String transport;
+    private final boolean matchmaking;
+    private final int protocol;
+    private final boolean reliable;
+    private final LoadLoop[] loops;
+    private final List<Pair> pairs;
+
+    private final LatencyHistogram[] totalLatencies;
+    private volatile LatencyHistogram[] intervalLatencies;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder gamesCompleted = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    public LoadGenerator(ServerConfig config) throws IOException {
+        this.server = new InetSocketAddress(config.getString("host", "localhost"), config.getInt("port", 3116));
+        this.moveDelayNanos = TimeUnit.MILLISECONDS.toNanos(config.getInt("move-delay-ms", 100));
+        this.transport = config.getString("transport", "tcp");
+        this.matchmaking = config.getBoolean("matchmaking", false);
+        this.protocol = config.getInt("protocol", 1);
+        this.reliable = config.getBoolean("reliable", false);
+        this.loops = new LoadLoop[Math.max(1, config.getInt("threads", Runtime.getRuntime().availableProcessors()))];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new LoadLoop();
+            Thread thread = new Thread(loops[i], "load-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        this.pairs = new CopyOnWriteArrayList<>();
+        this.totalLatencies = newHistograms();
+        this.intervalLatencies = newHistograms();
+    }
+
+    // Options: --host, --port, --transport=tcp|udp|both, --protocol=1|2, --reliable, --matchmaking, --threads,
+    // --move-delay-ms, --report-seconds, --ramp-up-seconds and either --schedule=players x seconds,... (e.g. 200x30,1000x30,4000x60) or
+    // --sessions with --duration-seconds
+    public static void main(String[] args) throws Exception {
+        ServerConfig config = new ServerConfig(args);
+        List<int[]> schedule = parseSchedule(config);
+        LoadGenerator generator = new LoadGenerator(config);
+        generator.run(schedule, config.getInt("ramp-up-seconds", 5), config.getInt("report-seconds", 5));
+    }
+
+    private static List<int[]> parseSchedule(ServerConfig config) {
+        List<int[]> schedule = new ArrayList<>();
+        String steps = config.getString("schedule", null);
+        if (steps == null) {
+            schedule.add(new int[] {config.getInt("sessions", 100), config.getInt("duration-seconds", 60)});
+            return schedule;
+        }
+        for (String step : steps.split(",")) {
+            String[] parts = step.trim().split("x");
+            schedule.add(new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])});
+        }
+        return schedule;
+    }
+
+    private static LatencyHistogram[] newHistograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[VERBS.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    private void run(List<int[]> schedule, int rampUpSeconds, int reportSeconds) throws InterruptedException {
+        System.out.println("Driving " + server + " over " + transport + (reliable ? " (reliable UDP)" : "")
+            + " with TTTP v" + protocol + " from " + loops.length + " threads");
+        long start = System.nanoTime();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "load-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] last = {start, 0, 0};
+        reporter.scheduleAtFixedRate(() -> report(start, last), reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+        for (int[] step : schedule) {
+            long stepEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(step[1]);
+            rampTo(step[0] / 2, TimeUnit.SECONDS.toNanos(Math.min(rampUpSeconds, step[1])));
+            long remaining = stepEnd - System.nanoTime();
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            }
+        }
+        reporter.shutdownNow();
+        rampTo(0, 0);
+        summary(System.nanoTime() - start);
+    }
+
+    // New pairs are started evenly over the ramp; surplus pairs finish their game and stop. A stopped
+    // pair is never started again, so every player name stays unique.
+    private void rampTo(int targetPairs, long rampNanos) throws InterruptedException {
+        int activePairs = activePairs();
+        for (Pair pair : pairs) {
+            if (activePairs <= targetPairs) {
+                break;
+            }
+            if (!pair.stopping) {
+                pair.stopping = true;
+                activePairs--;
+            }
+        }
+        int toStart = targetPairs - activePairs;
+        long interval = toStart <= 0 ? 0 : rampNanos / toStart;
+        for (int i = 0; i < toStart; i++) {
+            int index = pairs.size();
+            boolean udp = transport.equals("udp") || transport.equals("both") && index % 2 == 1;
+            Pair pair = new Pair(index, loops[index % loops.length], udp);
+            pairs.add(pair);
+            pair.loop.submit(() -> {
+                pair.loop.pairs.add(pair);
+                pair.start();
+            });
+            if (interval > 0) {
+                TimeUnit.NANOSECONDS.sleep(interval);
+            }
+        }
+    }
+
+    private int activePairs() {
+        int active = 0;
+        for (Pair pair : pairs) {
+            if (!pair.stopping) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    private void report(long start, long[] last) {
+        long now = System.nanoTime();
+        long totalRequests = requests.sum();
+        long totalGames = gamesCompleted.sum();
+        double seconds = (now - last[0]) / 1e9;
+        LatencyHistogram[] interval = intervalLatencies;
+        intervalLatencies = newHistograms();
+        StringBuilder line = new StringBuilder();
+        line.append(String.format("%6.1fs players=%d req/s=%.0f games/s=%.1f errors=%d timeouts=%d |",
+            (now - start) / 1e9, activePairs() * 2, (totalRequests - last[1]) / seconds,
+            (totalGames - last[2]) / seconds, errors.sum(), timeouts.sum()));
+        for (int verb = 0; verb < VERBS.length; verb++) {
+            appendLatency(line, verb, interval[verb], 0.5, 0.99, 0.999);
+        }
+        System.out.println(line);
+        last[0] = now;
+        last[1] = totalRequests;
+        last[2] = totalGames;
+    }
+
+    private void summary(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%nTotal: %d requests (%.0f/s), %d games (%.1f/s), %d errors, %d timeouts in %.0f s%n",
+            requests.sum(), requests.sum() / seconds, gamesCompleted.sum(), gamesCompleted.sum() / seconds,
+            errors.sum(), timeouts.sum(), seconds);
+        if (gamesCompleted.sum() > 0) {
+            System.out.printf("Bytes per game: %d sent, %d received%n", bytesSent.sum() / gamesCompleted.sum(),
+                bytesReceived.sum() / gamesCompleted.sum());
+        }
+        for (int verb = 0; verb < VERBS.length; verb++) {
+            StringBuilder line = new StringBuilder();
+            line.append(String.format("  %d", totalLatencies[verb].getCount()));
+            appendLatency(line, verb, totalLatencies[verb], 0.5, 0.9, 0.99, 0.999);
+            System.out.println(line);
+        }
+    }
+
+    // Quantiles in milliseconds, e.g. " MOVE p50=0.21 p99=1.3 p99.9=4.2"
+    private static void appendLatency(StringBuilder line, int verb, LatencyHistogram histogram, double... quantiles) {
+        line.append(' ').append(VERBS[verb]);
+        if (histogram.getCount() == 0) {
+            line.append(" -");
+            return;
+        }
+        long[] values = histogram.getQuantiles(quantiles);
+        for (int i = 0; i < quantiles.length; i++) {
+            String name = String.valueOf(quantiles[i] * 100).replaceAll("\\.0$", "");
+            line.append(String.format(" p%s=%.2f", name, values[i] / 1e6));
+        }
+    }
+
+    private void recordLatency(int verb, long nanos) {
+        totalLatencies[verb].record(nanos);
+        intervalLatencies[verb].record(nanos);
+    }
+
+    // Two players that always play each other. Both live on the same loop, so handing the game ID from
+    // the creator to the joiner needs no synchronisation. With matchmaking on, both send MTCH with the
+    // pair's own bucket instead and the server puts them in a game together.
+    private final class Pair {
+        final LoadLoop loop;
+        final Session creator;
+        final Session joiner;
+        final String bucket;
+        String offeredGameId;
+        boolean restartPending;
+        volatile boolean stopping;
+
+        Pair(int index, LoadLoop loop, boolean udp) {
+            this.loop = loop;
+            this.creator = new Session(this, "load" + index + "a", true, udp);
+            this.joiner = new Session(this, "load" + index + "b", false, udp);
+            this.bucket = "load" + index;
+        }
+
+        void start() {
+            restartPending = false;
+            offeredGameId = null;
+            if (stopping) {
+                return;
+            }
+            creator.connect();
+            joiner.connect();
+        }
+
+        void offer(String gameId) {
+            if (joiner.waitingForGame) {
+                joiner.join(gameId);
+            } else {
+                offeredGameId = gameId;
+            }
+        }
+
+        // After an error or timeout both players start over shortly, since the game they were in cannot
+        // go on
+        void restart() {
+            creator.close();
+            joiner.close();
+            if (!restartPending) {
+                restartPending = true;
+                loop.schedule(RESTART_DELAY_NANOS, this::start);
+            }
+        }
+    }
+
+    private final class Session {
+        final Pair pair;
+        final String name;
+        final boolean creator;
+        final boolean udp;
+        final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        final StringBuilder partialLine = new StringBuilder();
+        final ByteBuffer partialMessage = ByteBuffer.allocate(4096);
+        final byte[] decoded = new byte[4096];
+        final byte[] encoded = new byte[1024];
+        boolean binary;
+        ReliableUdp stream;
+        ReliableUdp previousStream;
+
+        SelectableChannel channel;
+        SelectionKey key;
+        ByteBuffer unwritten;
+        int pendingVerb = NONE;
+        long sentAt;
+        String gameId;
+        boolean waitingForGame;
+        int round;
+
+        Session(Pair pair, String name, boolean creator, boolean udp) {
+            this.pair = pair;
+            this.name = name;
+            this.creator = creator;
+            this.udp = udp;
+        }
+
+        void connect() {
+            round++;
+            gameId = null;
+            waitingForGame = false;
+            pendingVerb = NONE;
+            partialLine.setLength(0);
+            partialMessage.clear();
+            binary = false;
+            try {
+                if (udp) {
+                    if (channel == null) {
+                        DatagramChannel datagrams = DatagramChannel.open();
+                        datagrams.configureBlocking(false);
+                        datagrams.connect(server);
+                        channel = datagrams;
+                        key = datagrams.register(pair.loop.selector, SelectionKey.OP_READ, this);
+                    }
+                    if (reliable) {
+                        openStream();
+                    }
+                    send(HELO, "HELO " + protocol + " " + name);
+                } else {
+                    SocketChannel socket = SocketChannel.open();
+                    socket.configureBlocking(false);
+                    socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channel = socket;
+                    key = socket.register(pair.loop.selector, SelectionKey.OP_CONNECT, this);
+                    if (socket.connect(server)) {
+                        connected();
+                    }
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        // With --reliable every game is a new ReliableUdp stream. The last one is kept to ACK the
+        // server's retransmits of its final replies, as TCP does in TIME_WAIT.
+        void openStream() throws IOException {
+            if (stream != null) {
+                stream.flushAck();
+            }
+            previousStream = stream;
+            DatagramChannel datagrams = (DatagramChannel) channel;
+            stream = new ReliableUdp(datagrams::write);
+        }
+
+        void connected() throws IOException {
+            ((SocketChannel) channel).finishConnect();
+            key.interestOps(SelectionKey.OP_READ);
+            send(HELO, "HELO " + protocol + " " + name);
+        }
+
+        // A UDP player keeps its socket between games unless its pair is stopping
+        void close() {
+            if (channel != null && (!udp || pair.stopping)) {
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                channel = null;
+                stream = null;
+                previousStream = null;
+            }
+            pendingVerb = NONE;
+            unwritten = null;
+        }
+
+        void fail() {
+            errors.increment();
+            pair.restart();
+        }
+
+        void send(int verb, String request) {
+            pendingVerb = verb;
+            sentAt = System.nanoTime();
+            requests.increment();
+            ByteBuffer bytes;
+            if (binary) {
+                int end = TttpV2.encode(request, encoded, 0);
+                bytes = ByteBuffer.wrap(encoded, 0, udp ? end : TttpV2.prefixLength(encoded, 0, end));
+            } else {
+                bytes = ByteBuffer.wrap((request + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            }
+            bytesSent.add(bytes.remaining());
+            try {
+                if (stream != null) {
+                    stream.send(bytes.array(), bytes.position(), bytes.remaining());
+                } else if (udp) {
+                    ((DatagramChannel) channel).write(bytes);
+                } else {
+                    ((SocketChannel) channel).write(bytes);
+                    if (bytes.hasRemaining()) {
+                        unwritten = binary ? ByteBuffer.wrap(Arrays.copyOfRange(encoded, bytes.position(), bytes.limit())) : bytes;
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        void writeUnwritten() throws IOException {
+            ((SocketChannel) channel).write(unwritten);
+            if (!unwritten.hasRemaining()) {
+                unwritten = null;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            int read = udp ? ((DatagramChannel) channel).read(readBuffer) : ((SocketChannel) channel).read(readBuffer);
+            if (read == -1) {
+                // The server closes the connection after GDBY; anywhere else it is a failure
+                if (pendingVerb == GDBY) {
+                    onLine("GDBY");
+                } else {
+                    fail();
+                }
+                return;
+            }
+            bytesReceived.add(read);
+            readBuffer.flip();
+            if (stream != null && ReliableUdp.isReliable(readBuffer)) {
+                ReliableUdp receiver = previousStream != null
+                    && ReliableUdp.streamOf(readBuffer) == previousStream.getPeerStream() ? previousStream : stream;
+                int readRound = round;
+                receiver.receive(readBuffer, payload -> {
+                    if (round == readRound) {
+                        onReceived(payload);
+                    }
+                });
+                return;
+            }
+            onReceived(readBuffer);
+        }
+
+        void onReceived(ByteBuffer received) {
+            if (binary || udp && received.hasRemaining() && TttpV2.isMessage(received.get(received.position()))) {
+                readMessages(received);
+                return;
+            }
+            while (received.hasRemaining()) {
+                char c = (char) received.get();
+                if (c == '\n') {
+                    int length = partialLine.length();
+                    if (length > 0 && partialLine.charAt(length - 1) == '\r') {
+                        partialLine.setLength(length - 1);
+                    }
+                    String line = partialLine.toString();
+                    partialLine.setLength(0);
+                    onLine(line);
+                    if (channel == null) {
+                        return;
+                    }
+                    if (binary && !udp) {
+                        readMessages(received);
+                        return;
+                    }
+                } else {
+                    partialLine.append(c);
+                }
+            }
+            if (udp && partialLine.length() > 0) {
+                String line = partialLine.toString();
+                partialLine.setLength(0);
+                onLine(line);
+            }
+        }
+
+        // v2 messages, a whole datagram each or behind their length on TCP, are turned back into lines
+        void readMessages(ByteBuffer received) {
+            if (udp) {
+                onMessage(received, received.position(), received.limit());
+                return;
+            }
+            partialMessage.put(received);
+            partialMessage.flip();
+            int readRound = round;
+            while (true) {
+                int start = partialMessage.position();
+                int total = TttpV2.frameLength(partialMessage, start, partialMessage.limit());
+                if (total == -1 || start + total > partialMessage.limit()) {
+                    break;
+                }
+                partialMessage.position(start + total);
+                onMessage(partialMessage, TttpV2.payloadStart(partialMessage, start), start + total);
+                if (round != readRound || channel == null) {
+                    // GDBY started a new connection, which has reset the buffer
+                    return;
+                }
+            }
+            partialMessage.compact();
+        }
+
+        void onMessage(ByteBuffer buffer, int start, int end) {
+            int length = TttpV2.decode(buffer, start, end, decoded);
+            if (length < 0) {
+                fail();
+                return;
+            }
+            onLine(new String(decoded, 0, length, StandardCharsets.US_ASCII));
+        }
+
+        // Marks the outstanding request as answered and returns which verb it was
+        int answered() {
+            int verb = pendingVerb;
+            if (verb != NONE) {
+                recordLatency(verb, System.nanoTime() - sentAt);
+                pendingVerb = NONE;
+            }
+            return verb;
+        }
+
+        void onLine(String line) {
+            String[] words = line.split(" ");
+            switch (words[0]) {
+                case "SESS":
+                    answered();
+                    binary = words.length > 1 && words[1].equals("2");
+                    if (matchmaking) {
+                        send(MTCH, "MTCH " + pair.bucket);
+                    } else if (creator) {
+                        send(CREA, "CREA " + name);
+                    } else if (pair.offeredGameId != null) {
+                        String offered = pair.offeredGameId;
+                        pair.offeredGameId = null;
+                        join(offered);
+                    } else {
+                        waitingForGame = true;
+                    }
+                    break;
+                case "JOND":
+                    answered();
+                    gameId = words[2];
+                    if (creator && !matchmaking) {
+                        pair.offer(gameId);
+                    }
+                    break;
+                case "YRMV":
+                    if (words.length > 2 && words[2].equals(name)) {
+                        int turnRound = round;
+                        pair.loop.schedule(moveDelayNanos, () -> {
+                            if (round == turnRound && gameId != null && pendingVerb == NONE) {
+                                send(STAT, "STAT " + gameId);
+                            }
+                        });
+                    }
+                    break;
+                case "BORD":
+                    if (answered() == STAT) {
+                        int slot = randomEmptySlot(words);
+                        if (slot > 0) {
+                            send(MOVE, "MOVE " + gameId + " " + slot);
+                        }
+                    }
+                    break;
+                case "TERM":
+                    pendingVerb = NONE;
+                    if (creator) {
+                        gamesCompleted.increment();
+                    }
+                    gameId = null;
+                    send(GDBY, "GDBY " + name);
+                    break;
+                case "GDBY":
+                    answered();
+                    close();
+                    if (!pair.stopping) {
+                        connect();
+                    }
+                    break;
+                default:
+                    // MOVE_ERR when the board changed under us is retried from a fresh STAT; anything
+                    // else means the pair has lost track of its game
+                    int verb = answered();
+                    errors.increment();
+                    if (verb == MOVE && gameId != null) {
+                        send(STAT, "STAT " + gameId);
+                    } else {
+                        pair.restart();
+                    }
+            }
+        }
+
+        void join(String offered) {
+            waitingForGame = false;
+            send(JOIN, "JOIN " + offered);
+        }
+
+        // Cells of the board, e.g. |X|*|O|..., in slot order starting from 1; 0 when the board is full
+        int randomEmptySlot(String[] words) {
+            for (String word : words) {
+                if (word.startsWith("|")) {
+                    String[] cells = word.split("\\|");
+                    List<Integer> empty = new ArrayList<>();
+                    for (int i = 1; i < cells.length; i++) {
+                        if (cells[i].equals("*")) {
+                            empty.add(i);
+                        }
+                    }
+                    return empty.isEmpty() ? 0 : empty.get(ThreadLocalRandom.current().nextInt(empty.size()));
+                }
+            }
+            return 0;
+        }
+
+        boolean timedOut(long now) {
+            return pendingVerb != NONE && now - sentAt > REQUEST_TIMEOUT_NANOS;
+        }
+    }
+
+    private static final class Timer {
+        final long at;
+        final Runnable task;
+
+        Timer(long at, Runnable task) {
+            this.at = at;
+            this.task = task;
+        }
+    }
+
+    // One selector thread. Sessions, their pairs and timers are only touched from this thread; other
+    // threads hand it work through submit.
+    private final class LoadLoop implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(timer -> timer.at));
+        final List<Pair> pairs = new ArrayList<>();
+        long nextTimeoutCheck;
+
+        LoadLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void schedule(long delayNanos, Runnable task) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    long now = System.nanoTime();
+                    long wait = timers.isEmpty() ? 100 : Math.max(1, (timers.peek().at - now) / 1_000_000);
+                    selector.select(Math.min(wait, 100));
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                    now = System.nanoTime();
+                    while (!timers.isEmpty() && timers.peek().at <= now) {
+                        timers.poll().task.run();
+                    }
+                    if (now > nextTimeoutCheck) {
+                        checkTimeouts(now);
+                        nextTimeoutCheck = now + TimeUnit.SECONDS.toNanos(1);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Session session = (Session) key.attachment();
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                if (key.isConnectable()) {
+                    session.connected();
+                    return;
+                }
+                if (key.isReadable()) {
+                    session.read();
+                }
+                if (key.isValid() && key.isWritable() && session.unwritten != null) {
+                    session.writeUnwritten();
+                }
+            } catch (IOException e) {
+                session.fail();
+            }
+        }
+
+        private void checkTimeouts(long now) {
+            for (Pair pair : pairs) {
+                if (pair.creator.timedOut(now) || pair.joiner.timedOut(now)) {
+                    timeouts.increment();
+                    pair.restart();
+                }
+            }
+        }
+    }
+}
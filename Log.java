@@ -0,0 +1,199 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous server log. Callers claim a slot in a fixed ring with one compare-and-set and fill it in;
+// a single background thread formats the slots in order and writes them to stdout, flushing whenever
+// it catches up. A caller never waits on stdout or on another caller: when the ring is full the entry
+// is dropped and counted instead. The level can be changed while the server runs.
+final class Log {
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    public static final int OFF = 4;
+
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "WARN", "ERROR", "OFF"};
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+
+    // A slot is ready for the drain thread once its sequence is one past the claim that filled it
+    private static final class Entry {
+        volatile long sequence;
+        long timeMillis;
+        int level;
+        String thread;
+        String event;
+        String detail;
+    }
+
+    private static final Entry[] ring = new Entry[CAPACITY];
+    private static final AtomicLong claimed = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile long drained;
+    private static volatile int level = INFO;
+    private static final Writer out = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Entry();
+        }
+        Thread drainer = new Thread(Log::drain, "log-drain");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flushRemaining, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                level = i;
+                return;
+            }
+        }
+        warn("unknown log level " + name);
+    }
+
+    public static String getLevel() {
+        return LEVEL_NAMES[level];
+    }
+
+    public static boolean isEnabled(int messageLevel) {
+        return messageLevel >= level;
+    }
+
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    public static void debug(String message) {
+        log(DEBUG, message, null);
+    }
+
+    // The detail is only turned into a string when debug logging is on, so callers can pass a reused
+    // request object without paying for it otherwise
+    public static void debug(String event, Object detail) {
+        if (DEBUG >= level) {
+            log(DEBUG, event, String.valueOf(detail));
+        }
+    }
+
+    public static void info(String message) {
+        log(INFO, message, null);
+    }
+
+    // Like debug(event, detail), for events that happen per client, such as a disconnect
+    public static void info(String event, Object detail) {
+        if (INFO >= level) {
+            log(INFO, event, String.valueOf(detail));
+        }
+    }
+
+    public static void warn(String message) {
+        log(WARN, message, null);
+    }
+
+    public static void error(String message) {
+        log(ERROR, message, null);
+    }
+
+    private static void log(int messageLevel, String event, String detail) {
+        if (messageLevel < level) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - drained >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        Entry entry = ring[(int) (sequence & MASK)];
+        entry.timeMillis = System.currentTimeMillis();
+        entry.level = messageLevel;
+        entry.thread = Thread.currentThread().getName();
+        entry.event = event;
+        entry.detail = detail;
+        entry.sequence = sequence + 1;
+    }
+
+    private static void drain() {
+        int idleSpins = 0;
+        while (true) {
+            if (drainAvailable()) {
+                idleSpins = 0;
+            } else if (++idleSpins < 100) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+
+    // Writes every published entry in order and flushes once the ring is empty. Returns whether
+    // anything was written.
+    private static synchronized boolean drainAvailable() {
+        long next = drained;
+        Entry entry = ring[(int) (next & MASK)];
+        if (entry.sequence != next + 1) {
+            return false;
+        }
+        while (entry.sequence == next + 1) {
+            try {
+                write(entry);
+            } catch (IOException e) {
+                // stdout is gone; the entry is lost but draining goes on so the ring never fills up
+            }
+            entry.thread = null;
+            entry.event = null;
+            entry.detail = null;
+            next++;
+            drained = next;
+            entry = ring[(int) (next & MASK)];
+        }
+        try {
+            out.flush();
+        } catch (IOException ignored) {
+        }
+        return true;
+    }
+
+    private static void write(Entry entry) throws IOException {
+        out.write(Instant.ofEpochMilli(entry.timeMillis).toString());
+        out.write(' ');
+        out.write(LEVEL_NAMES[entry.level]);
+        out.write(' ');
+        out.write(entry.thread);
+        out.write(' ');
+        out.write(entry.event);
+        if (entry.detail != null) {
+            out.write(entry.detail);
+        }
+        out.write('\n');
+    }
+
+    private static void flushRemaining() {
+        drainAvailable();
+        long lost = dropped.sum();
+        if (lost > 0) {
+            try {
+                out.write(lost + " log entries dropped because the log could not keep up\n");
+                out.flush();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// A UDP relay that sits between clients and the server and drops, duplicates and delays datagrams in
+// both directions, for testing ReliableUdp on one machine. Each client gets its own socket towards the
+// server, so the server sees one address per client as it would without the proxy. Datagrams are
+// delayed by a random time up to --delay-ms, which also reorders them.
+public class LossyUdpProxy {
+    private final DatagramChannel listener;
+    private final InetSocketAddress target;
+    private final Selector selector;
+    private final Map<SocketAddress, DatagramChannel> upstreams = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService delayer;
+    private final Random random;
+    private final int lossPercent;
+    private final int duplicatePercent;
+    private final int delayMillis;
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder duplicated = new LongAdder();
+
+    public LossyUdpProxy(ServerConfig config) throws IOException {
+        this.target = new InetSocketAddress(config.getString("host", "localhost"), config.getInt("port", 3116));
+        this.lossPercent = config.getInt("loss-percent", 10);
+        this.duplicatePercent = config.getInt("duplicate-percent", 0);
+        this.delayMillis = config.getInt("delay-ms", 0);
+        this.random = new Random(config.getInt("seed", 1));
+        this.selector = Selector.open();
+        this.listener = DatagramChannel.open();
+        listener.bind(new InetSocketAddress(config.getInt("listen-port", 3216)));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_READ);
+        this.delayer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    // Options: --listen-port (3216), --host and --port of the server, --loss-percent (10), --duplicate-percent,
+    // --delay-ms and --seed. Point the load generator at --port=<listen-port>.
+    public static void main(String[] args) throws IOException {
+        LossyUdpProxy proxy = new LossyUdpProxy(new ServerConfig(args));
+        System.out.println("Relaying UDP from port " + proxy.listener.socket().getLocalPort() + " to " + proxy.target
+            + " with " + proxy.lossPercent + "% loss, " + proxy.duplicatePercent + "% duplicates and up to "
+            + proxy.delayMillis + " ms delay");
+        proxy.delayer.scheduleAtFixedRate(proxy::report, 10, 10, TimeUnit.SECONDS);
+        proxy.run();
+    }
+
+    private void run() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        while (true) {
+            selector.select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                DatagramChannel channel = (DatagramChannel) key.channel();
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                if (from == null) {
+                    continue;
+                }
+                buffer.flip();
+                byte[] datagram = new byte[buffer.remaining()];
+                buffer.get(datagram);
+                if (channel == listener) {
+                    relay(datagram, upstreamFor(from), target);
+                } else {
+                    relay(datagram, listener, (SocketAddress) key.attachment());
+                }
+            }
+        }
+    }
+
+    private DatagramChannel upstreamFor(SocketAddress client) throws IOException {
+        DatagramChannel upstream = upstreams.get(client);
+        if (upstream == null) {
+            upstream = DatagramChannel.open();
+            upstream.configureBlocking(false);
+            upstream.connect(target);
+            upstream.register(selector, SelectionKey.OP_READ, client);
+            upstreams.put(client, upstream);
+        }
+        return upstream;
+    }
+
+    private void relay(byte[] datagram, DatagramChannel out, SocketAddress to) {
+        if (random.nextInt(100) < lossPercent) {
+            dropped.increment();
+            return;
+        }
+        int copies = random.nextInt(100) < duplicatePercent ? 2 : 1;
+        if (copies == 2) {
+            duplicated.increment();
+        }
+        for (int i = 0; i < copies; i++) {
+            if (delayMillis <= 0) {
+                send(datagram, out, to);
+            } else {
+                delayer.schedule(() -> send(datagram, out, to), random.nextInt(delayMillis + 1), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void send(byte[] datagram, DatagramChannel out, SocketAddress to) {
+        try {
+            out.send(ByteBuffer.wrap(datagram), to);
+            forwarded.increment();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void report() {
+        System.out.println("forwarded " + forwarded.sum() + ", dropped " + dropped.sum() + ", duplicated "
+            + duplicated.sum() + ", clients " + upstreams.size());
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Pairs players who asked to be matched. Each bucket (a region or skill band, or "" for anyone) holds
+// at most one waiting player: the next request for the bucket takes that player out with one
+// compare-and-set and the two are matched on the spot, so the queue never grows past one. No locks
+// are taken, and two callers can never both be matched with the same waiting player.
+class Matchmaker {
+    private final Map<String, AtomicReference<ClientConnection>> buckets = new ConcurrentHashMap<>();
+
+    // Returns the opponent to play against, or null when the caller is now the one waiting. Waiting
+    // players that disconnected in the meantime are skipped.
+    public ClientConnection match(String bucket, ClientConnection player) {
+        AtomicReference<ClientConnection> waiting = buckets.get(bucket);
+        if (waiting == null) {
+            waiting = buckets.computeIfAbsent(bucket, b -> new AtomicReference<>());
+        }
+        while (true) {
+            ClientConnection opponent = waiting.get();
+            if (opponent == null) {
+                if (waiting.compareAndSet(null, player)) {
+                    return null;
+                }
+            } else if (opponent == player) {
+                return null;
+            } else if (waiting.compareAndSet(opponent, null) && opponent.isOpen()) {
+                return opponent;
+            }
+        }
+    }
+
+    public void cancel(ClientConnection player) {
+        for (AtomicReference<ClientConnection> waiting : buckets.values()) {
+            waiting.compareAndSet(player, null);
+        }
+    }
+
+    // A player whose session was resumed on a new connection keeps their place under that connection
+    public void replace(ClientConnection previous, ClientConnection player) {
+        for (AtomicReference<ClientConnection> waiting : buckets.values()) {
+            waiting.compareAndSet(previous, player);
+        }
+    }
+
+    public int getWaiting() {
+        int count = 0;
+        for (AtomicReference<ClientConnection> waiting : buckets.values()) {
+            if (waiting.get() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,225 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+// Server counters, per-verb latency histograms and gauges, served in the Prometheus text format on
+// /metrics. Every request is counted, but only one in sampleRate is timed, because the two nanoTime
+// calls cost more than the rest of the bookkeeping together and as much as a small request itself.
+// Requests and bytes are counted per thread with plain stores, since even an uncontended atomic add
+// costs a good part of a small request, and each thread times every sampleRate-th of its own
+// requests. The per-thread counts and the gauges are only read when the endpoint is scraped.
+final class Metrics {
+    private static final String[] VERBS = {"HELO", "LIST", "CREA", "JOIN", "STAT", "MOVE", "GDBY", "QUIT", "MTCH", "WTCH", "OTHER"};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // A tally holds a request count per verb, then the bytes received and sent
+    private static final int BYTES_RECEIVED = VERBS.length;
+    private static final int BYTES_SENT = VERBS.length + 1;
+    private static final int COUNTS = VERBS.length + 2;
+
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+    private static final long DISABLED = Long.MIN_VALUE + 1;
+
+    private static final LatencyHistogram[] latencies = new LatencyHistogram[VERBS.length];
+    private static final Set<Tally> tallies = ConcurrentHashMap.newKeySet();
+    private static final ThreadLocal<Tally> threadTally = ThreadLocal.withInitial(() -> {
+        Tally tally = new Tally();
+        tallies.add(tally);
+        return tally;
+    });
+    // Counts from tallies that have been flushed. Guarded by the class lock, like the scrape.
+    private static final long[] flushed = new long[COUNTS];
+    private static final Map<String, Gauge> gauges = new LinkedHashMap<>();
+    private static volatile boolean enabled = true;
+    private static volatile int sampleRate = 1;
+
+    private static final class Gauge {
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    // One thread's counts. Only that thread writes them, so adding to one is a plain read and an
+    // ordered store; the endpoint reads them from its own thread.
+    private static final class Tally {
+        final AtomicLongArray counts = new AtomicLongArray(COUNTS);
+        // Starts at a random point, so threads that only handle a few requests are timed too
+        int untilTimed = ThreadLocalRandom.current().nextInt(sampleRate) + 1;
+
+        void add(int index, long count) {
+            counts.lazySet(index, counts.get(index) + count);
+        }
+    }
+
+    static {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    // 1 times every request
+    public static void setSampleRate(int sampleRate) {
+        Metrics.sampleRate = Math.max(1, sampleRate);
+    }
+
+    // Counts the request and returns the time to pass to recordRequest once it has been handled
+    public static long startRequest(int verb) {
+        if (!enabled) {
+            return DISABLED;
+        }
+        Tally tally = threadTally.get();
+        tally.add(verbIndex(verb), 1);
+        if (--tally.untilTimed > 0) {
+            return NOT_TIMED;
+        }
+        tally.untilTimed = sampleRate;
+        return System.nanoTime();
+    }
+
+    public static void recordRequest(int verb, long start) {
+        if (start == NOT_TIMED || start == DISABLED) {
+            return;
+        }
+        latencies[verbIndex(verb)].record(System.nanoTime() - start);
+    }
+
+    public static void bytesReceived(int count) {
+        if (enabled) {
+            threadTally.get().add(BYTES_RECEIVED, count);
+        }
+    }
+
+    public static void bytesSent(int count) {
+        if (enabled) {
+            threadTally.get().add(BYTES_SENT, count);
+        }
+    }
+
+    // Adds the calling thread's counts to the totals and drops its tally. Called as a thread that
+    // served a single session finishes with it, so a thread per session leaves no tally behind.
+    public static synchronized void flushThread() {
+        Tally tally = threadTally.get();
+        tallies.remove(tally);
+        threadTally.remove();
+        for (int i = 0; i < COUNTS; i++) {
+            flushed[i] += tally.counts.get(i);
+        }
+    }
+
+    private static long count(int index) {
+        long count = flushed[index];
+        for (Tally tally : tallies) {
+            count += tally.counts.get(index);
+        }
+        return count;
+    }
+
+    public static synchronized void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    private static int verbIndex(int verb) {
+        switch (verb) {
+            case TttpRequest.HELO:
+                return 0;
+            case TttpRequest.LIST:
+                return 1;
+            case TttpRequest.CREA:
+                return 2;
+            case TttpRequest.JOIN:
+                return 3;
+            case TttpRequest.STAT:
+                return 4;
+            case TttpRequest.MOVE:
+                return 5;
+            case TttpRequest.GDBY:
+                return 6;
+            case TttpRequest.QUIT:
+                return 7;
+            case TttpRequest.MTCH:
+                return 8;
+            case TttpRequest.WTCH:
+                return 9;
+            default:
+                return 10;
+        }
+    }
+
+
+    public static synchronized String render() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP tttp_request_duration_seconds Time spent handling a request, by verb\n");
+        sb.append("# TYPE tttp_request_duration_seconds summary\n");
+        for (int i = 0; i < VERBS.length; i++) {
+            LatencyHistogram histogram = latencies[i];
+            long[] values = histogram.getQuantiles(QUANTILES);
+            for (int q = 0; q < QUANTILES.length; q++) {
+                sb.append("tttp_request_duration_seconds{verb=\"").append(VERBS[i]).append("\",quantile=\"")
+                    .append(QUANTILES[q]).append("\"} ").append(seconds(values[q])).append('\n');
+            }
+            // The sum is scaled up from the timed requests to all of them
+            long count = count(i);
+            long timed = histogram.getCount();
+            double sum = timed == 0 ? 0 : histogram.getSum() / 1e9 * count / timed;
+            sb.append("tttp_request_duration_seconds_sum{verb=\"").append(VERBS[i]).append("\"} ")
+                .append(sum).append('\n');
+            sb.append("tttp_request_duration_seconds_count{verb=\"").append(VERBS[i]).append("\"} ")
+                .append(count).append('\n');
+        }
+        counter(sb, "tttp_received_bytes_total", "Request bytes read from TCP and UDP clients", count(BYTES_RECEIVED));
+        counter(sb, "tttp_sent_bytes_total", "Response bytes written to TCP and UDP clients", count(BYTES_SENT));
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            String name = entry.getKey();
+            sb.append("# HELP ").append(name).append(' ').append(entry.getValue().help).append('\n');
+            sb.append("# TYPE ").append(name).append(" gauge\n");
+            sb.append(name).append(' ').append(entry.getValue().value.getAsLong()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    // Listens on the loopback interface only; scraping is meant for a local agent
+    public static void serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        Log.info("Metrics on http://" + server.getAddress().getHostString() + ":" + port + "/metrics");
+    }
+}
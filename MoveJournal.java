@@ -0,0 +1,386 @@
+import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Append-only journal of every accepted CREA, JOIN, MOVE and QUIT (plus evictions), written into
+// memory-mapped segment files. Each record is an int length followed by a type byte and its fields;
+// a zero length marks the end of the written part of a segment. Records reach the page cache as soon
+// as they are appended, so a crashed process loses nothing, and a background thread forces the
+// mapped pages to disk every few milliseconds so one fsync covers every record appended meanwhile.
+//
+// A snapshot of every game in memory is written from time to time together with the journal position
+// it covers, and the segments before it are deleted. Recovery loads the snapshot and replays only the
+// records after it. Replaying is idempotent, because records appended while a snapshot was being
+// written may or may not be reflected in it.
+class MoveJournal {
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    private static final byte CREATE = 1;
+    private static final byte JOIN = 2;
+    private static final byte MOVE = 3;
+    private static final byte QUIT = 4;
+    private static final byte EVICT = 5;
+
+    private final Path directory;
+    private final Games games;
+    private final long snapshotEvery;
+
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private long segmentNumber;
+    private final AtomicLong written = new AtomicLong();
+    private static final ThreadLocal<ByteBuffer> records = ThreadLocal.withInitial(() -> ByteBuffer.allocate(256));
+
+    // Guarded by this
+    private int syncedOffset;
+    private long recordsSinceSnapshot;
+    private long reserved;
+
+    // Strings are stored behind a short length
+    public static final int MAX_STRING_LENGTH = Short.MAX_VALUE;
+
+    private MoveJournal(Path directory, Games games, long snapshotEvery) {
+        this.directory = directory;
+        this.games = games;
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    // Rebuilds games from the latest snapshot and the journal after it, then opens the journal for appends
+    public static MoveJournal open(Path directory, Games games, long snapshotEvery) throws IOException {
+        Files.createDirectories(directory);
+        MoveJournal journal = new MoveJournal(directory, games, snapshotEvery);
+        long start = System.nanoTime();
+        long position = journal.loadSnapshot();
+        long replayed = journal.replayFrom(position);
+        Log.info(String.format("Recovered %d games from %s in %d ms (%d journal records replayed)",
+            games.getGames().size(), directory, (System.nanoTime() - start) / 1_000_000, replayed));
+        return journal;
+    }
+
+    public void start(int syncMillis) {
+        ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        syncer.scheduleWithFixedDelay(() -> {
+            if (snapshotDue()) {
+                try {
+                    snapshot();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void gameCreated(Game game, String clientId) {
+        ByteBuffer record = startRecord(CREATE, game, 2 + clientId.length() + 2);
+        putString(record, clientId);
+        record.put((byte) game.getBoard().getSize()).put((byte) game.getBoard().getWinLength());
+        append(record);
+    }
+
+    public void playerJoined(Game game, String clientId) {
+        ByteBuffer record = startRecord(JOIN, game, 2 + clientId.length() + 1);
+        putString(record, clientId);
+        record.put((byte) game.getFirstPlayer());
+        append(record);
+    }
+
+    public void movePlayed(Game game, int slot) {
+        ByteBuffer record = startRecord(MOVE, game, 2);
+        record.putShort((short) slot);
+        append(record);
+    }
+
+    // loserId is the player who quit or said goodbye
+    public void gameQuit(Game game, String loserId) {
+        ByteBuffer record = startRecord(QUIT, game, 2 + loserId.length());
+        putString(record, loserId);
+        append(record);
+    }
+
+    public void gameEvicted(Game game) {
+        append(startRecord(EVICT, game, 0));
+    }
+
+    // The calling thread's record buffer, grown to fit a record with this many bytes after the type and
+    // sequence number
+    private static ByteBuffer startRecord(byte type, Game game, int fieldBytes) {
+        ByteBuffer record = records.get();
+        int length = 1 + 8 + fieldBytes;
+        if (record.capacity() < length) {
+            record = ByteBuffer.allocate(Math.max(length, record.capacity() * 2));
+            records.set(record);
+        }
+        record.clear();
+        record.put(type).putLong(game.getSequence());
+        return record;
+    }
+
+    private static void putString(ByteBuffer record, String value) {
+        int length = value.length();
+        if (length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("journal string of " + length + " chars");
+        }
+        record.putShort((short) length);
+        for (int i = 0; i < length; i++) {
+            record.put((byte) value.charAt(i));
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    // Reserves the record's place and writes its length under the lock, then copies the record in
+    // outside it. The type byte goes in last, so a process that dies mid-copy leaves a record of
+    // type 0, which replay skips.
+    private void append(ByteBuffer record) {
+        int length = record.position();
+        MappedByteBuffer target;
+        int position;
+        synchronized (this) {
+            try {
+                if (segment.remaining() < 4 + length + 4) {
+                    rollSegment();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            target = segment;
+            position = segment.position();
+            segment.putInt(length);
+            segment.position(position + 4 + length);
+            reserved++;
+            recordsSinceSnapshot++;
+        }
+        target.put(position + 5, record.array(), 1, length - 1);
+        VarHandle.releaseFence();
+        target.put(position + 4, record.get(0));
+        written.incrementAndGet();
+    }
+
+    // Called under the lock before forcing pages, so every reserved record is in them. Copies take
+    // nanoseconds and need no lock, so this never waits long.
+    private void awaitWrites() {
+        while (written.get() < reserved) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        awaitWrites();
+        segment.force();
+        segmentChannel.close();
+        openSegment(segmentNumber + 1, 0);
+    }
+
+    private void openSegment(long number, int offset) throws IOException {
+        segmentNumber = number;
+        segmentChannel = FileChannel.open(segmentPath(number),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        segment.position(offset);
+        syncedOffset = offset;
+    }
+
+    // Group commit: one force covers every record appended since the last one. The force itself runs
+    // outside the lock so appends carry on while the disk catches up.
+    public void sync() {
+        MappedByteBuffer target;
+        int from;
+        int to;
+        synchronized (this) {
+            awaitWrites();
+            target = segment;
+            from = syncedOffset;
+            to = segment.position();
+            syncedOffset = to;
+        }
+        if (to > from) {
+            target.force(from, to - from);
+        }
+    }
+
+    private synchronized boolean snapshotDue() {
+        return recordsSinceSnapshot >= snapshotEvery;
+    }
+
+    private synchronized long position() {
+        return segmentNumber * SEGMENT_SIZE + segment.position();
+    }
+
+    // Saves every game in memory along with the journal position it is current to, then drops the
+    // segments before that position
+    public void snapshot() throws IOException {
+        long position;
+        synchronized (this) {
+            sync();
+            position = position();
+            recordsSinceSnapshot = 0;
+        }
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        int saved = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeLong(position);
+            for (Game game : games.getGames().values()) {
+                out.writeBoolean(true);
+                out.write(copyGame(game).join());
+                saved++;
+            }
+            out.writeBoolean(false);
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        for (long number : segmentNumbers()) {
+            if (number < position / SEGMENT_SIZE) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        }
+        Log.info("Journal snapshot of " + saved + " games written");
+    }
+
+    // A game's snapshot entry, written in its mailbox so the game is read between requests. Idle games,
+    // nearly all of them, are copied right away on the calling thread.
+    private static CompletableFuture<byte[]> copyGame(Game game) {
+        CompletableFuture<byte[]> copy = new CompletableFuture<>();
+        game.getMailbox().execute(() -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeBoolean(game.isDone());
+                GameArchive.writeGame(out, game);
+            } catch (IOException e) {
+                copy.completeExceptionally(e);
+                return;
+            }
+            copy.complete(bytes.toByteArray());
+        });
+        return copy;
+    }
+
+    private long loadSnapshot() throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshot)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            long position = in.readLong();
+            while (in.readBoolean()) {
+                boolean done = in.readBoolean();
+                games.restoreGame(GameArchive.readGame(in, done));
+            }
+            return position;
+        }
+    }
+
+    // Applies every record from the position on and leaves the journal open at the end of the last one
+    private long replayFrom(long position) throws IOException {
+        long replayed = 0;
+        long number = position / SEGMENT_SIZE;
+        int offset = (int) (position % SEGMENT_SIZE);
+        List<Long> numbers = segmentNumbers();
+        long last = numbers.isEmpty() ? number : Math.max(number, numbers.get(numbers.size() - 1));
+        for (; number <= last; number++) {
+            if (!Files.exists(segmentPath(number))) {
+                offset = 0;
+                continue;
+            }
+            openSegment(number, offset);
+            while (segment.remaining() >= 4) {
+                int start = segment.position();
+                int length = segment.getInt();
+                if (length <= 0 || length > segment.remaining()) {
+                    segment.position(start);
+                    break;
+                }
+                ByteBuffer entry = segment.slice();
+                entry.limit(length);
+                segment.position(start + 4 + length);
+                apply(entry);
+                replayed++;
+            }
+            syncedOffset = segment.position();
+            if (number < last) {
+                segmentChannel.close();
+            }
+            offset = 0;
+        }
+        if (segment == null) {
+            openSegment(position / SEGMENT_SIZE, (int) (position % SEGMENT_SIZE));
+        }
+        recordsSinceSnapshot = replayed;
+        return replayed;
+    }
+
+    private void apply(ByteBuffer entry) {
+        byte type = entry.get();
+        long sequence = entry.getLong();
+        String gameId = Games.createGameID(sequence);
+        Game game = games.getGame(gameId);
+        if (type == CREATE) {
+            String clientId = getString(entry);
+            int size = entry.get();
+            int winLength = entry.get();
+            if (game == null) {
+                games.createGame(sequence, clientId, size, winLength);
+            }
+        } else if (type == JOIN) {
+            String clientId = getString(entry);
+            int firstPlayer = entry.get();
+            if (game != null && !game.isFull() && games.addPlayerToGame(clientId, gameId)) {
+                game.chooseStartingPlayer(firstPlayer);
+            }
+        } else if (type == MOVE) {
+            int slot = entry.getShort();
+            if (game != null && game.getBoard().getMark(slot) == Board.EMPTY && game.makeMove(slot)) {
+                game.switchTurn();
+            }
+        } else if (type == QUIT) {
+            String loserId = getString(entry);
+            if (game != null && !game.isDone()) {
+                game.setWinner(loserId);
+                game.finishGame();
+            }
+        } else if (type == EVICT) {
+            if (game != null) {
+                games.evict(game);
+            }
+        }
+    }
+
+    private List<Long> segmentNumbers() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - 4)));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%08d.log", SEGMENT_PREFIX, number));
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// A fixed set of worker threads, each draining its own queue. Tasks submitted with the same key always
+// land on the same worker, so they run one at a time and in the order they were submitted, while tasks
+// for different keys run in parallel.
+class OrderedWorkers {
+    private final List<BlockingQueue<Runnable>> queues;
+
+    public OrderedWorkers(String name, int workers) {
+        this.queues = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+            queues.add(queue);
+            Thread worker = new Thread(() -> drain(queue), name + "-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public void execute(int key, Runnable task) {
+        queues.get(Math.floorMod(key, queues.size())).add(task);
+    }
+
+    public int getQueuedTasks() {
+        int queued = 0;
+        for (BlockingQueue<Runnable> queue : queues) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    private static void drain(BlockingQueue<Runnable> queue) {
+        while (true) {
+            try {
+                queue.take().run();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
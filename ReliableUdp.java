@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Reliable, ordered delivery over UDP between two endpoints, for clients that opt in by wrapping their
+// datagrams. Each datagram carries the sender's stream ID, a sequence number and a cumulative ACK of the
+// other side's stream:
+//
+//   0x1D <stream> <sequence> <ack> <payload>      (varints; a pure ACK has sequence 0 and no payload)
+//
+// Payloads are handed over in sequence order exactly once: duplicates are dropped and answered with an
+// ACK, and datagrams that arrive early wait for the gap to fill. Sent datagrams are kept until ACKed
+// and sent again from a shared timer wheel with exponential backoff. An ACK rides on the next datagram
+// going the other way, or goes on its own when nothing has left within ACK_DELAY_MILLIS. A new stream
+// ID starts over from sequence 1, so a client that reconnects is never confused with its old stream.
+class ReliableUdp {
+    public static final byte MARKER = 0x1D;
+
+    private static final long INITIAL_RTO_MILLIS = 100;
+    private static final long MAX_RTO_MILLIS = 2000;
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long ACK_DELAY_MILLIS = 20;
+    private static final int REORDER_WINDOW = 64;
+    private static final TimerWheel wheel = new TimerWheel("udp-retransmit", 10, 512);
+    private static final LongAdder retransmits = new LongAdder();
+    private static final LongAdder duplicates = new LongAdder();
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    // Sends one datagram to the other endpoint
+    interface Transmitter {
+        void transmit(ByteBuffer datagram) throws IOException;
+    }
+
+    private static final class Outgoing {
+        final long sequence;
+        final byte[] datagram;
+        int attempts;
+
+        Outgoing(long sequence, byte[] datagram) {
+            this.sequence = sequence;
+            this.datagram = datagram;
+        }
+    }
+
+    private final Transmitter transmitter;
+    private final int stream;
+    private long nextSequence = 1;
+    private long acknowledged;
+    private final Deque<Outgoing> unacknowledged = new ArrayDeque<>();
+    private Runnable drainListener;
+
+    private int peerStream;
+    private long delivered;
+    private final TreeMap<Long, byte[]> early = new TreeMap<>();
+    private boolean ackOwed;
+
+    public ReliableUdp(Transmitter transmitter) {
+        this.transmitter = transmitter;
+        this.stream = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+    }
+
+    public static boolean isReliable(ByteBuffer datagram) {
+        return datagram.limit() > 0 && datagram.get(0) == MARKER;
+    }
+
+    // The stream ID of a wrapped datagram, or -1 if its header is cut short
+    public static int streamOf(ByteBuffer datagram) {
+        int end = TttpV2.varintEnd(datagram, 1, datagram.limit());
+        return end < 0 ? -1 : (int) TttpV2.varintAt(datagram, 1);
+    }
+
+    // Whether the datagram is the first of its stream, the only one that may open a session
+    public static boolean opensStream(ByteBuffer datagram) {
+        int sequenceStart = TttpV2.varintEnd(datagram, 1, datagram.limit());
+        return sequenceStart > 0 && TttpV2.varintEnd(datagram, sequenceStart, datagram.limit()) > 0
+            && TttpV2.varintAt(datagram, sequenceStart) == 1;
+    }
+
+    public static long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    public static long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    // The stream ID of the other endpoint, 0 until its first datagram
+    public synchronized int getPeerStream() {
+        return peerStream;
+    }
+
+    public synchronized void send(byte[] payload, int offset, int length) throws IOException {
+        long sequence = nextSequence++;
+        Outgoing outgoing = new Outgoing(sequence, wrap(sequence, payload, offset, length));
+        unacknowledged.add(outgoing);
+        ackOwed = false;
+        transmitter.transmit(ByteBuffer.wrap(outgoing.datagram));
+        wheel.schedule(INITIAL_RTO_MILLIS, () -> retransmit(outgoing, INITIAL_RTO_MILLIS));
+    }
+
+    // Hands every payload that is now in order to deliver, as a buffer positioned at the payload. The
+    // buffer is only valid during the call.
+    public synchronized void receive(ByteBuffer datagram, Consumer<ByteBuffer> deliver) throws IOException {
+        int limit = datagram.limit();
+        int sequenceStart = TttpV2.varintEnd(datagram, 1, limit);
+        int ackStart = sequenceStart < 0 ? -1 : TttpV2.varintEnd(datagram, sequenceStart, limit);
+        int payloadStart = ackStart < 0 ? -1 : TttpV2.varintEnd(datagram, ackStart, limit);
+        if (payloadStart < 0) {
+            return;
+        }
+        int senderStream = (int) TttpV2.varintAt(datagram, 1);
+        long sequence = TttpV2.varintAt(datagram, sequenceStart);
+        if (senderStream != peerStream) {
+            if (sequence != 1) {
+                // Left over from a stream the peer has since replaced
+                return;
+            }
+            peerStream = senderStream;
+            delivered = 0;
+            early.clear();
+        }
+        acknowledge(TttpV2.varintAt(datagram, ackStart));
+        if (sequence == 0) {
+            return;
+        }
+        if (sequence <= delivered) {
+            duplicates.increment();
+            sendAck();
+            return;
+        }
+        if (sequence > delivered + 1) {
+            if (sequence <= delivered + REORDER_WINDOW && !early.containsKey(sequence)) {
+                byte[] payload = new byte[limit - payloadStart];
+                datagram.get(payloadStart, payload);
+                early.put(sequence, payload);
+            }
+            sendAck();
+            return;
+        }
+        // Owed before delivering, so a reply sent from deliver carries the ACK and settles it
+        if (!ackOwed) {
+            ackOwed = true;
+            wheel.schedule(ACK_DELAY_MILLIS, this::sendOwedAck);
+        }
+        delivered = sequence;
+        datagram.position(payloadStart);
+        deliver.accept(datagram);
+        byte[] next;
+        while ((next = early.remove(delivered + 1)) != null) {
+            delivered++;
+            deliver.accept(ByteBuffer.wrap(next));
+        }
+    }
+
+    // Runs once everything sent so far has been ACKed, or given up on, and nothing more is owed
+    public synchronized void whenDrained(Runnable listener) {
+        if (unacknowledged.isEmpty()) {
+            listener.run();
+        } else {
+            drainListener = listener;
+        }
+    }
+
+    // Sends the ACK that is owed right away, e.g. before a client closes its socket
+    public synchronized void flushAck() throws IOException {
+        if (ackOwed) {
+            sendAck();
+        }
+    }
+
+    private void acknowledge(long ack) {
+        if (ack <= acknowledged || ack >= nextSequence) {
+            return;
+        }
+        acknowledged = ack;
+        while (!unacknowledged.isEmpty() && unacknowledged.peekFirst().sequence <= ack) {
+            unacknowledged.pollFirst();
+        }
+        if (unacknowledged.isEmpty()) {
+            drained();
+        }
+    }
+
+    private void drained() {
+        if (drainListener != null) {
+            Runnable listener = drainListener;
+            drainListener = null;
+            listener.run();
+        }
+    }
+
+    // A peer that has not ACKed after MAX_ATTEMPTS sends is taken to be gone, and everything it still
+    // owes an ACK for is dropped
+    private synchronized void retransmit(Outgoing outgoing, long rto) {
+        if (outgoing.sequence <= acknowledged || unacknowledged.peekFirst() == null
+            || unacknowledged.peekFirst().sequence > outgoing.sequence) {
+            return;
+        }
+        if (++outgoing.attempts >= MAX_ATTEMPTS) {
+            Log.info("UDP peer stopped acknowledging, dropped " + unacknowledged.size() + " unacknowledged datagrams");
+            acknowledged = nextSequence - 1;
+            unacknowledged.clear();
+            drained();
+            return;
+        }
+        retransmits.increment();
+        try {
+            transmitter.transmit(ByteBuffer.wrap(outgoing.datagram));
+        } catch (IOException e) {
+            Log.warn("UDP retransmit failed: " + e.getMessage());
+        }
+        long nextRto = Math.min(rto * 2, MAX_RTO_MILLIS);
+        wheel.schedule(nextRto, () -> retransmit(outgoing, nextRto));
+    }
+
+    private synchronized void sendOwedAck() {
+        if (ackOwed) {
+            try {
+                sendAck();
+            } catch (IOException e) {
+                Log.warn("UDP ACK failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void sendAck() throws IOException {
+        ackOwed = false;
+        transmitter.transmit(ByteBuffer.wrap(wrap(0, NO_PAYLOAD, 0, 0)));
+    }
+
+    private byte[] wrap(long sequence, byte[] payload, int offset, int length) {
+        byte[] header = new byte[24];
+        header[0] = MARKER;
+        int end = TttpV2.putVarint(header, 1, stream);
+        end = TttpV2.putVarint(header, end, sequence);
+        end = TttpV2.putVarint(header, end, delivered);
+        byte[] datagram = Arrays.copyOf(header, end + length);
+        System.arraycopy(payload, offset, datagram, end, length);
+        return datagram;
+    }
+}
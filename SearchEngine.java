@@ -0,0 +1,372 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+// Iterative-deepening alpha-beta search for boards too large for the solved table. Nodes with enough
+// depth left search their first move alone and then the remaining moves in parallel on a ForkJoinPool
+// (young brothers wait). All workers share one lock-free transposition table keyed by Zobrist hashes.
+class SearchEngine {
+    private static final int WIN_SCORE = 1_000_000;
+    private static final int PARALLEL_DEPTH = 2;
+    private static final int NEIGHBOURHOOD = 2;
+    private static final int MAX_DEPTH = 64;
+    private static final int TABLE_SIZE = 1 << 20;
+    private static final int[] WINDOW_SCORES = {0, 1, 10, 100, 1_000, 10_000, 100_000};
+
+    private static final int EXACT = 0;
+    private static final int LOWER_BOUND = 1;
+    private static final int UPPER_BOUND = 2;
+
+    private static final Map<Integer, long[]> zobristKeys = new ConcurrentHashMap<>();
+
+    private final ForkJoinPool pool;
+    // An entry is valid when tableKeys[i] ^ tableData[i] equals the position's hash, so a torn write
+    // by two racing workers only ever shows up as a miss
+    private final long[] tableKeys;
+    private final long[] tableData;
+    private final LongAdder nodes;
+
+    private volatile long deadline;
+    private volatile boolean aborted;
+
+    public SearchEngine(int threads) {
+        this.pool = new ForkJoinPool(threads);
+        this.tableKeys = new long[TABLE_SIZE];
+        this.tableData = new long[TABLE_SIZE];
+        this.nodes = new LongAdder();
+    }
+
+    public long getNodes() {
+        return nodes.sum();
+    }
+
+    // Returns the 1-based slot for the given mark to play, deepening until the time budget runs out
+    public synchronized int findMove(Board board, int mark, long timeBudgetMillis) {
+        return search(board, mark, MAX_DEPTH, System.nanoTime() + timeBudgetMillis * 1_000_000);
+    }
+
+    public synchronized int searchToDepth(Board board, int mark, int depth) {
+        return search(board, mark, depth, Long.MAX_VALUE);
+    }
+
+    private int search(Board board, int mark, int maxDepth, long deadline) {
+        GridBoard root = GridBoard.copyOf(board);
+        long hash = hashOf(root);
+        int[] moves = candidateMoves(root);
+        if (moves.length == 0) {
+            return 0;
+        }
+        this.deadline = deadline;
+        this.aborted = false;
+
+        int bestMove = moves[0];
+        for (int depth = 1; depth <= maxDepth && depth <= root.getCellCount() - countStones(root); depth++) {
+            SearchTask task = new SearchTask(root.copy(), hash, mark, depth, -WIN_SCORE * 2, WIN_SCORE * 2, 0, true);
+            int score = pool.invoke(task);
+            if (aborted) {
+                break;
+            }
+            bestMove = task.bestMove;
+            if (Math.abs(score) >= WIN_SCORE) {
+                break;
+            }
+        }
+        return bestMove;
+    }
+
+    private class SearchTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final GridBoard board;
+        private final long hash;
+        private final int mark;
+        private final int depth;
+        private final int alpha;
+        private final int beta;
+        private final int lastIndex;
+        private final boolean isRoot;
+        private int bestMove;
+        private long visited;
+
+        SearchTask(GridBoard board, long hash, int mark, int depth, int alpha, int beta, int lastIndex, boolean isRoot) {
+            this.board = board;
+            this.hash = hash;
+            this.mark = mark;
+            this.depth = depth;
+            this.alpha = alpha;
+            this.beta = beta;
+            this.lastIndex = lastIndex;
+            this.isRoot = isRoot;
+        }
+
+        @Override
+        protected Integer compute() {
+            return negamax(board, hash, mark, depth, alpha, beta, lastIndex, 0);
+        }
+
+        // Scores the position for the side to move; the opponent has just played lastIndex
+        private int negamax(GridBoard board, long hash, int mark, int depth, int alpha, int beta, int lastIndex, int ply) {
+            nodes.increment();
+            if (aborted || ((++visited & 1023) == 0 && System.nanoTime() > deadline)) {
+                aborted = true;
+                return 0;
+            }
+            if (lastIndex > 0 && board.isWinningMove(lastIndex)) {
+                return -(WIN_SCORE + depth);
+            }
+            if (board.isFull()) {
+                return 0;
+            }
+            if (depth == 0) {
+                return evaluate(board, mark);
+            }
+
+            int originalAlpha = alpha;
+            int tableMove = 0;
+            int slot = (int) (hash & (TABLE_SIZE - 1));
+            long data = tableData[slot];
+            if ((tableKeys[slot] ^ data) == hash) {
+                tableMove = entryMove(data);
+                if (entryDepth(data) >= depth && !(isRoot && ply == 0)) {
+                    int score = entryScore(data);
+                    int flag = entryFlag(data);
+                    if (flag == EXACT
+                        || (flag == LOWER_BOUND && score >= beta)
+                        || (flag == UPPER_BOUND && score <= alpha)) {
+                        return score;
+                    }
+                }
+            }
+
+            int[] moves = orderMoves(candidateMoves(board), tableMove);
+            int other = mark == Board.X ? Board.O : Board.X;
+            int best = Integer.MIN_VALUE;
+            int bestMove = moves[0];
+
+            int first = playAndSearch(board, hash, mark, other, depth, -beta, -alpha, moves[0], ply);
+            best = first;
+            alpha = Math.max(alpha, first);
+
+            if (alpha < beta && moves.length > 1) {
+                if (depth >= PARALLEL_DEPTH && pool.getParallelism() > 1) {
+                    List<SearchTask> siblings = new ArrayList<>();
+                    for (int i = 1; i < moves.length; i++) {
+                        GridBoard child = board.copy();
+                        child.place(moves[i], mark);
+                        siblings.add(new SearchTask(child, hash ^ zobrist(board, moves[i], mark), other,
+                            depth - 1, -beta, -alpha, moves[i], false));
+                    }
+                    invokeAll(siblings);
+                    for (int i = 0; i < siblings.size(); i++) {
+                        int score = -siblings.get(i).join();
+                        if (score > best) {
+                            best = score;
+                            bestMove = moves[i + 1];
+                        }
+                    }
+                } else {
+                    for (int i = 1; i < moves.length && alpha < beta; i++) {
+                        int score = playAndSearch(board, hash, mark, other, depth, -beta, -alpha, moves[i], ply);
+                        if (score > best) {
+                            best = score;
+                            bestMove = moves[i];
+                        }
+                        alpha = Math.max(alpha, score);
+                    }
+                }
+            }
+            if (aborted) {
+                return 0;
+            }
+
+            int flag = best <= originalAlpha ? UPPER_BOUND : best >= beta ? LOWER_BOUND : EXACT;
+            long entry = packEntry(best, depth, flag, bestMove);
+            tableKeys[slot] = hash ^ entry;
+            tableData[slot] = entry;
+            if (isRoot && ply == 0) {
+                this.bestMove = bestMove;
+            }
+            return best;
+        }
+
+        private int playAndSearch(GridBoard board, long hash, int mark, int other, int depth, int alpha, int beta, int move, int ply) {
+            board.place(move, mark);
+            int score = -negamax(board, hash ^ zobrist(board, move, mark), other, depth - 1, alpha, beta, move, ply + 1);
+            board.clear(move);
+            return score;
+        }
+    }
+
+    // Sums every window of winLength cells that only one side has marks in, weighted by how full it is
+    private static int evaluate(GridBoard board, int mark) {
+        int size = board.getSize();
+        int length = board.getWinLength();
+        int score = 0;
+        int[][] directions = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+        for (int row = 0; row < size; row++) {
+            for (int column = 0; column < size; column++) {
+                for (int[] direction : directions) {
+                    int endRow = row + direction[0] * (length - 1);
+                    int endColumn = column + direction[1] * (length - 1);
+                    if (endRow < 0 || endRow >= size || endColumn < 0 || endColumn >= size) {
+                        continue;
+                    }
+                    int own = 0;
+                    int opponent = 0;
+                    for (int i = 0; i < length; i++) {
+                        int cell = board.getMark((row + direction[0] * i) * size + column + direction[1] * i + 1);
+                        if (cell == mark) {
+                            own++;
+                        } else if (cell != Board.EMPTY) {
+                            opponent++;
+                        }
+                    }
+                    if (opponent == 0) {
+                        score += WINDOW_SCORES[Math.min(own, WINDOW_SCORES.length - 1)];
+                    } else if (own == 0) {
+                        score -= WINDOW_SCORES[Math.min(opponent, WINDOW_SCORES.length - 1)];
+                    }
+                }
+            }
+        }
+        return score;
+    }
+
+    // Empty cells near an existing mark; on an empty board only the centre
+    private static int[] candidateMoves(GridBoard board) {
+        int size = board.getSize();
+        int[] moves = new int[board.getCellCount()];
+        int count = 0;
+        boolean anyStone = false;
+        for (int row = 0; row < size; row++) {
+            for (int column = 0; column < size; column++) {
+                int index = row * size + column + 1;
+                if (board.getMark(index) != Board.EMPTY) {
+                    anyStone = true;
+                    continue;
+                }
+                if (hasNeighbour(board, row, column)) {
+                    moves[count++] = index;
+                }
+            }
+        }
+        if (!anyStone) {
+            return new int[] {(size / 2) * size + size / 2 + 1};
+        }
+        return Arrays.copyOf(moves, count);
+    }
+
+    private static boolean hasNeighbour(GridBoard board, int row, int column) {
+        int size = board.getSize();
+        for (int r = Math.max(0, row - NEIGHBOURHOOD); r <= Math.min(size - 1, row + NEIGHBOURHOOD); r++) {
+            for (int c = Math.max(0, column - NEIGHBOURHOOD); c <= Math.min(size - 1, column + NEIGHBOURHOOD); c++) {
+                if (board.getMark(r * size + c + 1) != Board.EMPTY) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int[] orderMoves(int[] moves, int firstMove) {
+        for (int i = 1; i < moves.length; i++) {
+            if (moves[i] == firstMove) {
+                moves[i] = moves[0];
+                moves[0] = firstMove;
+                break;
+            }
+        }
+        return moves;
+    }
+
+    private static int countStones(GridBoard board) {
+        int count = 0;
+        for (int i = 1; i <= board.getCellCount(); i++) {
+            if (board.getMark(i) != Board.EMPTY) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long hashOf(GridBoard board) {
+        long hash = keysFor(board)[0];
+        for (int i = 1; i <= board.getCellCount(); i++) {
+            int mark = board.getMark(i);
+            if (mark != Board.EMPTY) {
+                hash ^= zobrist(board, i, mark);
+            }
+        }
+        return hash;
+    }
+
+    // Key 0 identifies the board size and win length, keys 2 * index + mark - 1 the marks on each cell
+    private static long zobrist(GridBoard board, int index, int mark) {
+        return keysFor(board)[2 * index + mark - 1];
+    }
+
+    private static long[] keysFor(GridBoard board) {
+        int variant = board.getSize() * 100 + board.getWinLength();
+        return zobristKeys.computeIfAbsent(variant, v -> {
+            Random random = new Random(v);
+            long[] keys = new long[2 * board.getCellCount() + 2];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextLong();
+            }
+            return keys;
+        });
+    }
+
+    private static long packEntry(int score, int depth, int flag, int move) {
+        return ((long) score << 32) | ((long) flag << 24) | ((long) depth << 16) | move;
+    }
+
+    private static int entryScore(long entry) {
+        return (int) (entry >> 32);
+    }
+
+    private static int entryFlag(long entry) {
+        return (int) (entry >>> 24) & 0xFF;
+    }
+
+    private static int entryDepth(long entry) {
+        return (int) (entry >>> 16) & 0xFF;
+    }
+
+    private static int entryMove(long entry) {
+        return (int) entry & 0xFFFF;
+    }
+
+    // Benchmark: java SearchEngine [depth] [size] [winLength] [maxThreads]
+    public static void main(String[] args) {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 15;
+        int winLength = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        GridBoard board = new GridBoard(size, winLength);
+        int centre = (size / 2) * size + size / 2 + 1;
+        board.place(centre, Board.X);
+        board.place(centre + 1, Board.O);
+        board.place(centre + size, Board.X);
+        board.place(centre - size + 1, Board.O);
+
+        int cores = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            SearchEngine engine = new SearchEngine(threads);
+            engine.searchToDepth(board, Board.X, depth - 1);
+            long warmNodes = engine.getNodes();
+            long start = System.nanoTime();
+            int move = engine.searchToDepth(board, Board.X, depth);
+            long nanos = System.nanoTime() - start;
+            long searched = engine.getNodes() - warmNodes;
+            System.out.printf("%2d threads: depth %d move %d, %d nodes in %.1f ms, %.0f nodes/s%n",
+                threads, depth, move, searched, nanos / 1e6, searched * 1e9 / nanos);
+            engine.pool.shutdown();
+            if (threads == cores) {
+                break;
+            }
+        }
+    }
+}
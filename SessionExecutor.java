@@ -0,0 +1,149 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+// Runs blocking TCP sessions on virtual threads, or on a cached pool of platform threads where those are
+// missing, with a cap on how many tasks may be in flight and enough bookkeeping to compare the two
+class SessionExecutor {
+    private static final String POOL_THREAD_PREFIX = "request-worker-";
+    // Carriers are named like any other ForkJoinPool worker, the search engine's included, so they are
+    // told apart by their class instead
+    private static final String CARRIER_THREAD_CLASS = "jdk.internal.misc.CarrierThread";
+
+    private final String mode;
+    private final Predicate<Thread> isWorker;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+
+    private long lastReportNanos;
+    private long lastWorkerCpuNanos;
+
+    private SessionExecutor(String mode, Predicate<Thread> isWorker, ExecutorService executor, int maxConcurrency) {
+        this.mode = mode;
+        this.isWorker = isWorker;
+        this.executor = executor;
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    // Virtual threads are only available from Java 21, so they are looked up reflectively to keep the
+    // server compiling on older JDKs. Without them this falls back to an unbounded cached pool.
+    public static SessionExecutor virtualThreads(int maxConcurrency) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) factory.invoke(null);
+            return new SessionExecutor("virtual", SessionExecutor::isCarrierThread, executor, maxConcurrency);
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads need Java 21 or newer, falling back to a cached thread pool");
+            AtomicInteger threadCount = new AtomicInteger();
+            ExecutorService pool = Executors.newCachedThreadPool(
+                r -> new Thread(r, POOL_THREAD_PREFIX + threadCount.getAndIncrement()));
+            return new SessionExecutor("cached", SessionExecutor::isPoolThread, pool, maxConcurrency);
+        }
+    }
+
+    // Blocks the submitting thread while the concurrency limit is reached
+    public void execute(Runnable task) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        int nowActive = active.incrementAndGet();
+        peakActive.accumulateAndGet(nowActive, Math::max);
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.increment();
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            active.decrementAndGet();
+            permits.release();
+            throw e;
+        }
+    }
+
+    // Tasks submitted and not yet finished, running or waiting for a thread
+    public int getActive() {
+        return active.get();
+    }
+
+    public void startReporting(int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        lastReportNanos = System.nanoTime();
+        lastWorkerCpuNanos = workerCpuNanos();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> Log.info(report()), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Worker utilisation is the CPU time spent on pool threads (or virtual thread carriers) since the
+    // last report, divided by the wall time available to those threads
+    public synchronized String report() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long now = System.nanoTime();
+        long workerCpu = workerCpuNanos();
+        int workers = workerCount();
+        double utilisation = 0;
+        if (workers > 0 && now > lastReportNanos) {
+            utilisation = 100.0 * (workerCpu - lastWorkerCpuNanos) / ((double) (now - lastReportNanos) * workers);
+        }
+        lastReportNanos = now;
+        lastWorkerCpuNanos = workerCpu;
+        return String.format("[%s executor] active=%d peak=%d completed=%d workers=%d platformThreads=%d workerUtilisation=%.1f%%",
+            mode, active.get(), peakActive.get(), completed.sum(), workers, threads.getThreadCount(), utilisation);
+    }
+
+    private static boolean isPoolThread(Thread thread) {
+        return thread.getName().startsWith(POOL_THREAD_PREFIX);
+    }
+
+    private static boolean isCarrierThread(Thread thread) {
+        return thread.getClass().getName().equals(CARRIER_THREAD_CLASS);
+    }
+
+    private int workerCount() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (isWorker.test(thread)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long workerCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadCpuTimeSupported()) {
+            return 0;
+        }
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (isWorker.test(thread)) {
+                long cpu = threads.getThreadCpuTime(thread.getId());
+                if (cpu > 0) {
+                    total += cpu;
+                }
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,190 @@
+import java.util.*;
+
+// Best moves for every reachable 3x3 position, solved once at startup. A position is addressed by its
+// base-3 index: cell i (0-based) contributes its mark (0 empty, 1 X, 2 O) times 3^i. Scores are only
+// solved for one representative of each group of positions that are rotations or reflections of each
+// other, then the best move of every position is stored directly so a lookup is a single array read.
+class SolvedTable {
+    private static final int CELLS = 9;
+    private static final int POSITIONS = 19683;
+    private static final int[] POWERS = {1, 3, 9, 27, 81, 243, 729, 2187, 6561};
+    private static final byte UNSOLVED = Byte.MIN_VALUE;
+
+    private static final int[][] LINES = {
+      {0, 1, 2}, {3, 4, 5}, {6, 7, 8},
+      {0, 3, 6}, {1, 4, 7}, {2, 5, 8},
+      {0, 4, 8}, {2, 4, 6}
+    };
+
+    // Each transform maps a cell of the transformed board to the cell of the original board it shows
+    private static final int[][] SYMMETRIES = {
+      {0, 1, 2, 3, 4, 5, 6, 7, 8}, // identity
+      {6, 3, 0, 7, 4, 1, 8, 5, 2}, // rotate 90
+      {8, 7, 6, 5, 4, 3, 2, 1, 0}, // rotate 180
+      {2, 5, 8, 1, 4, 7, 0, 3, 6}, // rotate 270
+      {2, 1, 0, 5, 4, 3, 8, 7, 6}, // mirror columns
+      {6, 7, 8, 3, 4, 5, 0, 1, 2}, // mirror rows
+      {0, 3, 6, 1, 4, 7, 2, 5, 8}, // main diagonal
+      {8, 5, 2, 7, 4, 1, 6, 3, 0}  // anti diagonal
+    };
+
+    private final byte[] scores;
+    private final byte[] bestMoves;
+    private int solvedPositions;
+
+    private SolvedTable() {
+        this.scores = new byte[POSITIONS];
+        this.bestMoves = new byte[POSITIONS];
+        Arrays.fill(scores, UNSOLVED);
+    }
+
+    public static SolvedTable build() {
+        SolvedTable table = new SolvedTable();
+        int[] cells = new int[CELLS];
+        table.solve(cells, 0, 0);
+        table.fillBestMoves(cells, 0, 0);
+        return table;
+    }
+
+    // Returns the 1-based slot to play, or 0 when the position is finished or unreachable
+    public int bestMove(int position) {
+        return bestMoves[position];
+    }
+
+    public int getSolvedPositions() {
+        return solvedPositions;
+    }
+
+    public static int indexOf(Board board) {
+        int position = 0;
+        for (int i = 0; i < CELLS; i++) {
+            position += board.getMark(i + 1) * POWERS[i];
+        }
+        return position;
+    }
+
+    // Negamax score for the side to move: positive when it wins, higher for quicker wins
+    private int solve(int[] cells, int position, int placed) {
+        int canonical = canonicalIndex(cells);
+        if (scores[canonical] != UNSOLVED) {
+            return scores[canonical];
+        }
+        int mark = placed % 2 == 0 ? Board.X : Board.O;
+        int best = Integer.MIN_VALUE;
+        for (int i = 0; i < CELLS; i++) {
+            if (cells[i] == Board.EMPTY) {
+                best = Math.max(best, scoreMove(cells, position, placed, i, mark));
+            }
+        }
+        if (best == Integer.MIN_VALUE) {
+            best = 0;
+        }
+        scores[canonical] = (byte) best;
+        solvedPositions++;
+        return best;
+    }
+
+    private int scoreMove(int[] cells, int position, int placed, int cell, int mark) {
+        cells[cell] = mark;
+        int score;
+        if (isWin(cells, cell, mark)) {
+            score = CELLS + 1 - (placed + 1);
+        } else if (placed + 1 == CELLS) {
+            score = 0;
+        } else {
+            score = -solve(cells, position + mark * POWERS[cell], placed + 1);
+        }
+        cells[cell] = Board.EMPTY;
+        return score;
+    }
+
+    private void fillBestMoves(int[] cells, int position, int placed) {
+        if (bestMoves[position] != 0) {
+            return;
+        }
+        int mark = placed % 2 == 0 ? Board.X : Board.O;
+        int best = Integer.MIN_VALUE;
+        int bestCell = -1;
+        for (int i = 0; i < CELLS; i++) {
+            if (cells[i] == Board.EMPTY) {
+                int score = scoreMove(cells, position, placed, i, mark);
+                if (score > best) {
+                    best = score;
+                    bestCell = i;
+                }
+            }
+        }
+        if (bestCell == -1) {
+            return;
+        }
+        bestMoves[position] = (byte) (bestCell + 1);
+
+        for (int i = 0; i < CELLS; i++) {
+            if (cells[i] == Board.EMPTY) {
+                cells[i] = mark;
+                if (!isWin(cells, i, mark)) {
+                    fillBestMoves(cells, position + mark * POWERS[i], placed + 1);
+                }
+                cells[i] = Board.EMPTY;
+            }
+        }
+    }
+
+    private static int canonicalIndex(int[] cells) {
+        int canonical = Integer.MAX_VALUE;
+        for (int[] symmetry : SYMMETRIES) {
+            int position = 0;
+            for (int i = 0; i < CELLS; i++) {
+                position += cells[symmetry[i]] * POWERS[i];
+            }
+            canonical = Math.min(canonical, position);
+        }
+        return canonical;
+    }
+
+    private static boolean isWin(int[] cells, int cell, int mark) {
+        for (int[] line : LINES) {
+            if ((line[0] == cell || line[1] == cell || line[2] == cell)
+                && cells[line[0]] == mark && cells[line[1]] == mark && cells[line[2]] == mark) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Benchmark: java SolvedTable [lookups]
+    public static void main(String[] args) {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 50_000_000;
+
+        long buildStart = System.nanoTime();
+        SolvedTable table = build();
+        long buildNanos = System.nanoTime() - buildStart;
+        int reachable = 0;
+        for (byte move : table.bestMoves) {
+            if (move != 0) {
+                reachable++;
+            }
+        }
+        System.out.printf("built in %.2f ms: %d canonical positions solved, %d positions with a best move%n",
+            buildNanos / 1e6, table.getSolvedPositions(), reachable);
+
+        int[] positions = new int[reachable];
+        int next = 0;
+        for (int i = 0; i < POSITIONS; i++) {
+            if (table.bestMoves[i] != 0) {
+                positions[next++] = i;
+            }
+        }
+
+        long checksum = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                checksum += table.bestMove(positions[i % positions.length]);
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.printf("round %d: %.2f ns per move%n", round, (double) nanos / lookups);
+        }
+        System.out.println("checksum " + checksum);
+    }
+}
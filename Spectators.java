@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Clients watching games they do not play in. Every move publishes the game's cached BORD snapshot, and
+// that one array is sent to every spectator as is, so a game with thousands of viewers costs one BORD
+// per move rather than one per viewer. Spectators that have gone away are dropped on the next publish.
+class Spectators {
+    private static final class Audience {
+        final Game game;
+        final List<ClientConnection> viewers = new CopyOnWriteArrayList<>();
+        byte[] lastPublished;
+
+        Audience(Game game) {
+            this.game = game;
+        }
+    }
+
+    private final Map<String, Audience> audiences = new ConcurrentHashMap<>();
+
+    // Sends the newest board to the spectator and subscribes it. Runs in the game's mailbox, with the
+    // game's current snapshot, so the game cannot finish in between.
+    public void watch(Game game, ClientConnection spectator, byte[] snapshot) {
+        Audience audience = audiences.computeIfAbsent(game.getGameId(), id -> new Audience(game));
+        synchronized (audience) {
+            if (audience.lastPublished == null) {
+                audience.lastPublished = snapshot;
+            }
+            if (!audience.viewers.contains(spectator)) {
+                audience.viewers.add(spectator);
+            }
+            send(audience, spectator, audience.lastPublished);
+        }
+    }
+
+    // A snapshot that was already published, e.g. the board sent back for a rejected move, is not sent again
+    public void publish(String gameId, byte[] snapshot) {
+        Audience audience = audiences.get(gameId);
+        if (audience == null) {
+            return;
+        }
+        synchronized (audience) {
+            if (snapshot == audience.lastPublished) {
+                return;
+            }
+            audience.lastPublished = snapshot;
+            for (ClientConnection spectator : audience.viewers) {
+                send(audience, spectator, snapshot);
+            }
+        }
+    }
+
+    // Ends the game's audience and returns who was watching, so they can be told how it ended. Runs in
+    // the game's mailbox.
+    public List<ClientConnection> finish(String gameId) {
+        Audience audience = audiences.remove(gameId);
+        return audience == null ? List.of() : audience.viewers;
+    }
+
+    public int getSpectatorCount() {
+        int count = 0;
+        for (Audience audience : audiences.values()) {
+            count += audience.viewers.size();
+        }
+        return count;
+    }
+
+    public int getWatchedGames() {
+        return audiences.size();
+    }
+
+    private static void send(Audience audience, ClientConnection spectator, byte[] snapshot) {
+        if (!spectator.isOpen()) {
+            audience.viewers.remove(spectator);
+            return;
+        }
+        try {
+            spectator.sendEncoded(snapshot, audience.game);
+        } catch (IOException e) {
+            audience.viewers.remove(spectator);
+        }
+    }
+}
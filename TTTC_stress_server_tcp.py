@@ -0,0 +1,114 @@
+""" TTTC_stress_server_tcp.py - A stress test for the game registry of a
+    running TicTacToeServer.
+
+    Many clients create games and race each other to JOIN them at the same
+    time. Afterwards every game must have exactly one successful joiner, two
+    players in its BORD, and LIST ALL must contain every created game once.
+
+    Usage: python3 TTTC_stress_server_tcp.py [host] [port] [clients] [rounds]
+"""
+
+import socket
+import sys
+import threading
+
+HOST = sys.argv[1] if len(sys.argv) > 1 else "localhost"
+PORT = int(sys.argv[2]) if len(sys.argv) > 2 else 3116
+CLIENTS = int(sys.argv[3]) if len(sys.argv) > 3 else 32
+ROUNDS = int(sys.argv[4]) if len(sys.argv) > 4 else 50
+
+
+class Client:
+    """ A blocking line-based TTTP client """
+
+    def __init__(self, client_id):
+        self.client_id = client_id
+        self.sock = socket.create_connection((HOST, PORT))
+        self.file = self.sock.makefile("r", encoding="ascii", newline="\r\n")
+        self.send("HELO 1 " + client_id)
+        self.expect("SESS")
+
+    def send(self, request):
+        self.sock.sendall((request + "\r\n").encode("ascii"))
+
+    def expect(self, *prefixes):
+        """ Read lines until one starts with one of the prefixes, skipping pushed YRMV/TERM messages """
+        while True:
+            line = self.file.readline().strip()
+            if not line:
+                raise ConnectionError(self.client_id + " lost the connection")
+            if line.startswith(prefixes):
+                return line.split(" ")
+
+    def close(self):
+        self.send("GDBY " + self.client_id)
+        self.sock.close()
+
+
+created = []
+joined = {}
+errors = []
+lock = threading.Lock()
+start_barrier = threading.Barrier(CLIENTS)
+
+
+def creator_and_joiner(index):
+    try:
+        client = Client("stress%d" % index)
+        own_games = set()
+        start_barrier.wait()
+        for round_number in range(ROUNDS):
+            client.send("CREA " + client.client_id)
+            game_id = client.expect("JOND")[2]
+            own_games.add(game_id)
+            with lock:
+                created.append(game_id)
+
+            # Everyone tries to join a game created by someone else in the same round
+            client.send("LIST")
+            for candidate in client.expect("GAMS")[1:]:
+                if candidate in own_games:
+                    continue
+                client.send("JOIN " + candidate)
+                response = client.expect("JOND")
+                if response[0] == "JOND":
+                    with lock:
+                        joined.setdefault(candidate, []).append(client.client_id)
+                    break
+        client.close()
+    except Exception as e:
+        with lock:
+            errors.append(repr(e))
+
+
+threads = [threading.Thread(target=creator_and_joiner, args=(i,)) for i in range(CLIENTS)]
+for thread in threads:
+    thread.start()
+for thread in threads:
+    thread.join()
+
+checker = Client("stresschecker")
+checker.send("LIST ALL")
+listed = checker.expect("GAMS")[1:]
+
+for game_id, joiners in joined.items():
+    if len(joiners) != 1:
+        errors.append("%s was joined by %s" % (game_id, joiners))
+    checker.send("STAT " + game_id)
+    bord = checker.expect("BORD")
+    if len(bord) < 5 or bord[2] == bord[3]:
+        errors.append("%s has a corrupt board: %s" % (game_id, " ".join(bord)))
+
+if len(created) != len(set(created)):
+    errors.append("duplicate game IDs were handed out")
+missing = set(created) - set(listed)
+if missing:
+    errors.append("%d created games are missing from LIST ALL" % len(missing))
+checker.sock.close()
+
+print("created %d games, %d joined" % (len(created), len(joined)))
+if errors:
+    for error in errors[:20]:
+        print("FAIL", error)
+    sys.exit(1)
+print("OK")
@@ -0,0 +1,319 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+
+class TcpEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final long IDLE_SWEEP_MILLIS = 1000;
+
+    private final Selector selector;
+    private final ByteBuffer readBuffer;
+    private final Queue<SocketChannel> pendingChannels;
+    private final TttpRequest request;
+    private final BiConsumer<ClientConnection, TttpRequest> requestHandler;
+    private final Queue<ClientConnection> pendingFlushes;
+    private final int maxQueuedBytes;
+    private final long idleTimeoutMillis;
+    private long nextIdleSweep;
+    private volatile Thread loopThread;
+
+    private TcpEventLoop[] acceptTargets;
+    private int nextAcceptTarget;
+
+    // Connections that send nothing for idleTimeoutMillis are closed; 0 keeps them open
+    public TcpEventLoop(BiConsumer<ClientConnection, TttpRequest> requestHandler, int maxQueuedBytes,
+                        long idleTimeoutMillis) throws IOException {
+        this.selector = Selector.open();
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+        this.request = new TttpRequest();
+        this.requestHandler = requestHandler;
+        this.pendingFlushes = new ConcurrentLinkedQueue<>();
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    // Makes this loop the acceptor; accepted channels are handed out round-robin to the given loops
+    public void accept(ServerSocketChannel serverChannel, TcpEventLoop[] loops) throws IOException {
+        this.acceptTargets = loops;
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    public int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    // Responses queued while this loop is handling requests are flushed once it has handled every ready
+    // key, so a MOVE's BORD and YRMV leave in one write. Other threads have to wake the loop up.
+    public void scheduleFlush(ClientConnection clientConnection) {
+        pendingFlushes.add(clientConnection);
+        if (Thread.currentThread() != loopThread) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        loopThread = Thread.currentThread();
+        while (true) {
+            try {
+                selector.select(idleTimeoutMillis > 0 ? IDLE_SWEEP_MILLIS : 0);
+                registerPendingChannels();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        handleAccept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    ClientConnection clientConnection = (ClientConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            handleRead(key, clientConnection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            clientConnection.flushOutbound();
+                        }
+                    } catch (IOException e) {
+                        Log.info("TCP CLIENT DISCONNECTED: ", e.getMessage());
+                        clientConnection.close();
+                    }
+                }
+                flushPendingConnections();
+                if (idleTimeoutMillis > 0) {
+                    closeIdleConnections();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void flushPendingConnections() {
+        ClientConnection clientConnection;
+        while ((clientConnection = pendingFlushes.poll()) != null) {
+            try {
+                clientConnection.flushOutbound();
+            } catch (IOException e) {
+                Log.info("TCP CLIENT DISCONNECTED: ", e.getMessage());
+                clientConnection.close();
+            }
+        }
+    }
+
+    // A client whose network went away without a FIN would otherwise hold its connection forever. Its
+    // session survives the close and can be resumed from a new connection.
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now < nextIdleSweep) {
+            return;
+        }
+        nextIdleSweep = now + IDLE_SWEEP_MILLIS;
+        long cutoff = now - idleTimeoutMillis;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof ClientConnection) {
+                ClientConnection clientConnection = (ClientConnection) key.attachment();
+                if (clientConnection.getLastSeen() < cutoff && clientConnection.isOpen()) {
+                    Log.info("TCP CLIENT IDLE, DISCONNECTED");
+                    clientConnection.close();
+                }
+            }
+        }
+    }
+
+    private void handleAccept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            Log.info("TCP CLIENT CONNECTED");
+            TcpEventLoop target = acceptTargets[nextAcceptTarget];
+            nextAcceptTarget = (nextAcceptTarget + 1) % acceptTargets.length;
+            target.register(channel);
+        }
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                ClientConnection clientConnection = new ClientConnection(channel, key, this);
+                clientConnection.touch();
+                key.attach(clientConnection);
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void handleRead(SelectionKey key, ClientConnection clientConnection) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        while (true) {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                Log.info("TCP CLIENT DISCONNECTED");
+                clientConnection.close();
+                return;
+            }
+            if (read == 0) {
+                return;
+            }
+            Metrics.bytesReceived(read);
+            clientConnection.touch();
+            readBuffer.flip();
+            frameRequests(clientConnection);
+            if (!key.isValid()) {
+                return;
+            }
+        }
+    }
+
+    // Splits the bytes in readBuffer into requests and parses each one straight into this loop's request,
+    // which is reused for every request. Lines are read until the client negotiates v2 in HELO, and
+    // length-prefixed messages from the next byte on. Only a connection with a partially received request
+    // holds a buffer of its own, so idle connections cost no buffer memory.
+    private void frameRequests(ClientConnection clientConnection) throws IOException {
+        while (readBuffer.hasRemaining()) {
+            boolean complete = clientConnection.getProtocolVersion() == 2
+                ? frameMessage(clientConnection) : frameLine(clientConnection);
+            if (!complete) {
+                return;
+            }
+        }
+    }
+
+    // Takes one \r\n (or bare \n) terminated line; false when the rest of readBuffer was kept for later
+    private boolean frameLine(ClientConnection clientConnection) throws IOException {
+        int start = readBuffer.position();
+        int newline = -1;
+        for (int i = start; i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) == '\n') {
+                newline = i;
+                break;
+            }
+        }
+
+        ByteBuffer partialLine = clientConnection.getPartialLine();
+        if (newline == -1) {
+            keepPartial(clientConnection, readBuffer.remaining());
+            return false;
+        }
+
+        boolean parsed;
+        if (partialLine == null) {
+            parsed = request.parse(readBuffer, start, newline);
+        } else {
+            if (partialLine.remaining() < newline - start) {
+                throw new IOException("request line too long");
+            }
+            ByteBuffer slice = readBuffer.duplicate();
+            slice.limit(newline);
+            partialLine.put(slice);
+            partialLine.flip();
+            parsed = request.parse(partialLine, 0, partialLine.limit());
+            clientConnection.setPartialLine(null);
+        }
+        readBuffer.position(newline + 1);
+        if (parsed) {
+            handleRequest(clientConnection);
+        }
+        return true;
+    }
+
+    // Takes one v2 message, completing one that began in an earlier read. Exactly the message's bytes
+    // are moved into the partial buffer, so the next message stays in readBuffer.
+    private boolean frameMessage(ClientConnection clientConnection) throws IOException {
+        ByteBuffer partial = clientConnection.getPartialLine();
+        if (partial == null) {
+            int start = readBuffer.position();
+            int total = TttpV2.frameLength(readBuffer, start, readBuffer.limit());
+            if (total > MAX_LINE_LENGTH) {
+                throw new IOException("request message too long");
+            }
+            if (total == -1 || start + total > readBuffer.limit()) {
+                keepPartial(clientConnection, readBuffer.remaining());
+                return false;
+            }
+            readBuffer.position(start + total);
+            parseMessage(clientConnection, readBuffer, start, start + total);
+            return true;
+        }
+        int total;
+        while ((total = TttpV2.frameLength(partial, 0, partial.position())) == -1) {
+            if (!readBuffer.hasRemaining()) {
+                return false;
+            }
+            partial.put(readBuffer.get());
+        }
+        if (total > MAX_LINE_LENGTH) {
+            throw new IOException("request message too long");
+        }
+        int missing = total - partial.position();
+        int count = Math.min(missing, readBuffer.remaining());
+        ByteBuffer slice = readBuffer.duplicate();
+        slice.limit(readBuffer.position() + count);
+        partial.put(slice);
+        readBuffer.position(readBuffer.position() + count);
+        if (count < missing) {
+            return false;
+        }
+        partial.flip();
+        clientConnection.setPartialLine(null);
+        parseMessage(clientConnection, partial, 0, total);
+        return true;
+    }
+
+    private void parseMessage(ClientConnection clientConnection, ByteBuffer buffer, int start, int end) {
+        if (request.parseMessage(buffer, TttpV2.payloadStart(buffer, start), end)) {
+            handleRequest(clientConnection);
+        }
+    }
+
+    // Moves the next length bytes of readBuffer to the end of the connection's partial buffer
+    private void keepPartial(ClientConnection clientConnection, int length) throws IOException {
+        ByteBuffer partial = clientConnection.getPartialLine();
+        if (partial == null) {
+            partial = ByteBuffer.allocate(MAX_LINE_LENGTH);
+            clientConnection.setPartialLine(partial);
+        }
+        if (partial.remaining() < length) {
+            throw new IOException("request line too long");
+        }
+        ByteBuffer slice = readBuffer.duplicate();
+        slice.limit(readBuffer.position() + length);
+        partial.put(slice);
+        readBuffer.position(readBuffer.position() + length);
+    }
+
+    private void handleRequest(ClientConnection clientConnection) {
+        Log.debug("[TCP REQUEST] ", request);
+        try {
+            requestHandler.accept(clientConnection, request);
+        } catch (RuntimeException e) {
+            // A failing request must not take down the loop and every other connection on it
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,85 +1,312 @@
 import java.io.*;
 import java.io.BufferedReader;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.ArrayList;
 
 public class TicTacToeServer {
-    private static final int PORT = 3116;
+    private static int port = 3116;
     private static final int MAX_PACKET_SIZE = 1024;
-    private static final int PROTOCOL_VERSION = 1;
+    private static final int PROTOCOL_VERSION = 2;
 
-    private static DatagramSocket udpSocket;
+    private static UdpSessions udpSessions;
+    private static OrderedWorkers udpWorkers;
+    private static final BufferPool udpBuffers = new BufferPool(MAX_PACKET_SIZE, 256);
     private static ServerSocket tcpSocket;
+    private static ServerSocketChannel tcpChannel;
 
-    private static ExecutorService exec = Executors.newCachedThreadPool();
+    private static SessionExecutor exec;
 
-    private static Map<String, ClientConnection> clientConnections = new HashMap<>(); // maps clientIds to clientConnections
+    private static Map<String, ClientConnection> clientConnections = new ConcurrentHashMap<>(); // maps clientIds to clientConnections
+    private static final Map<String, ClientConnection> sessions = new ConcurrentHashMap<>(); // maps session IDs to their current connection
     private static Games games = new Games();
+    private static final Matchmaker matchmaker = new Matchmaker();
+    private static final Spectators spectators = new Spectators();
+    private static MoveJournal journal;
+    private static Cluster cluster;
+    private static int tcpIdleTimeoutMillis;
+    private static final ThreadLocal<TttpRequest> threadRequest = ThreadLocal.withInitial(TttpRequest::new);
 
     public static void main(String[] args) {
+        ServerConfig config = new ServerConfig(args);
+        Log.setLevel(config.getString("log-level", "info"));
+        port = config.getInt("port", 3116);
+        cluster = Cluster.fromConfig(config);
+        if (cluster != null) {
+            games.setShards(Cluster.SHARDS, cluster.getOwnedShards());
+            Log.info("Node " + cluster.getSelf() + " of " + cluster.getNodeCount() + " owns "
+                + cluster.getOwnedShards().length + " of " + Cluster.SHARDS + " shards");
+        }
         try {
-            udpSocket = new DatagramSocket(PORT);
-            tcpSocket = new ServerSocket(PORT);
-            exec = Executors.newFixedThreadPool(10);
-            exec.execute(TicTacToeServer::handleUdpRequests);
-            exec.execute(TicTacToeServer::handleTcpRequests);
-            System.out.println("Server is running on port " + PORT);
+            String journalDirectory = config.getString("journal", "journal");
+            if (!journalDirectory.equals("off")) {
+                journal = MoveJournal.open(Paths.get(journalDirectory), games, config.getInt("snapshot-every", 250_000));
+                journal.start(config.getInt("journal-sync-ms", 5));
+            }
+            List<DatagramChannel> udpChannels = openUdpChannels(config.getInt("udp-receivers", 1));
+            udpSessions = new UdpSessions(config.getInt("udp-idle-timeout", 300) * 1000L,
+                TicTacToeServer::forgetUdpClient);
+            udpSessions.startExpiring();
+            startExpiringSessions(config.getInt("session-timeout", 120) * 1000L);
+            tcpIdleTimeoutMillis = config.getInt("tcp-idle-timeout", 300) * 1000;
+            udpWorkers = new OrderedWorkers("udp-worker",
+                config.getInt("udp-workers", Runtime.getRuntime().availableProcessors()));
+            String mode = config.getString("mode", "nio");
+            if (mode.equals("virtual")) {
+                exec = SessionExecutor.virtualThreads(config.getInt("max-concurrency", 100000));
+                tcpSocket = new ServerSocket(port);
+                new Thread(TicTacToeServer::handleBlockingTcpRequests, "tcp-acceptor").start();
+            } else {
+                tcpChannel = ServerSocketChannel.open();
+                tcpChannel.bind(new InetSocketAddress(port));
+                handleTcpRequests(config.getInt("io-threads", Runtime.getRuntime().availableProcessors()),
+                    config.getInt("max-queued-kb", 256) * 1024);
+            }
+            for (int i = 0; i < config.getInt("udp-receivers", 1); i++) {
+                DatagramChannel udpChannel = udpChannels.get(i % udpChannels.size());
+                new Thread(() -> handleUdpRequests(udpChannel), "udp-receiver-" + i).start();
+            }
+            if (exec != null) {
+                exec.startReporting(config.getInt("stats-interval", 0));
+            }
+            startEvictingFinishedGames(config);
+            Metrics.setSampleRate(config.getInt("metrics-sample", 16));
+            startMetrics(config.getInt("metrics-port", 3117));
+
+            long solveStart = System.nanoTime();
+            BotConnection.prepare(config.getInt("search-threads", Runtime.getRuntime().availableProcessors()),
+                config.getInt("bot-think-ms", 1000));
+            Log.info("Solved table built in " + (System.nanoTime() - solveStart) / 1_000_000 + " ms");
+            int botJoinInterval = config.getInt("bot-autojoin-ms", 0);
+            if (botJoinInterval > 0) {
+                new Thread(() -> joinOpenGamesWithBots(botJoinInterval), "bot-autojoin").start();
+            }
+            Log.info("Server is running on port " + port + " in " + mode + " mode");
+            new Thread(TicTacToeServer::readConsoleCommands, "console").start();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void startMetrics(int port) throws IOException {
+        if (port <= 0) {
+            Metrics.setEnabled(false);
+            return;
+        }
+        Metrics.gauge("tttp_clients", "Clients that have said HELO and not yet GDBY", clientConnections::size);
+        Metrics.gauge("tttp_sessions", "Sessions that can be resumed, with or without a connection", sessions::size);
+        Metrics.gauge("tttp_udp_sessions", "UDP addresses heard from within the idle timeout", udpSessions::size);
+        Metrics.gauge("tttp_games_open", "Games waiting for a second player", () -> games.countGames("OPEN"));
+        Metrics.gauge("tttp_games_current", "Games in progress", () -> games.countGames("CURR"));
+        Metrics.gauge("tttp_games_finished", "Finished games still in memory", () -> games.countGames("FINI"));
+        if (exec != null) {
+            Metrics.gauge("tttp_executor_active", "Blocking TCP sessions running or waiting for a thread", exec::getActive);
+        }
+        Metrics.gauge("tttp_udp_worker_queue", "UDP requests waiting for their worker", udpWorkers::getQueuedTasks);
+        Metrics.gauge("tttp_udp_retransmits", "Datagrams sent again to reliable UDP clients", ReliableUdp::getRetransmits);
+        Metrics.gauge("tttp_udp_duplicates", "Duplicate datagrams dropped from reliable UDP clients", ReliableUdp::getDuplicates);
+        Metrics.gauge("tttp_spectators", "Clients watching games they do not play in", spectators::getSpectatorCount);
+        Metrics.gauge("tttp_matchmaking_waiting", "Players waiting for a match", matchmaker::getWaiting);
+        Metrics.gauge("tttp_log_dropped", "Log entries dropped because the log could not keep up", Log::getDropped);
+        Metrics.serve(port);
+    }
+
+    // The log level can be changed while the server runs by typing "log-level debug" (or info, warn,
+    // error, off) on its standard input
+    private static void readConsoleCommands() {
+        try (BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            while ((line = console.readLine()) != null) {
+                String[] words = line.trim().split("\\s+");
+                if (words.length == 2 && words[0].equals("log-level")) {
+                    Log.setLevel(words[1]);
+                    Log.info("log level is now " + Log.getLevel());
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static void handleUdpRequests() {
+    // Finished games are kept for --finished-ttl seconds for STAT and then moved to the archive file
+    private static void startEvictingFinishedGames(ServerConfig config) throws IOException {
+        int ttlSeconds = config.getInt("finished-ttl", 300);
+        if (ttlSeconds <= 0) {
+            return;
+        }
+        GameArchive archive = new GameArchive(new File(config.getString("archive", "games.archive")));
+        games.setArchive(archive);
+        GameEvictor evictor = new GameEvictor(games, archive, ttlSeconds * 1000L, TicTacToeServer::forgetGame);
+        evictor.start(Math.min(ttlSeconds * 1000L, 10_000));
+    }
+
+    private static void forgetGame(Game game) {
+        if (journal != null) {
+            journal.gameEvicted(game);
+        }
+        for (String clientId : game.getPlayers()) {
+            ClientConnection playerConnection = clientConnections.get(clientId);
+            if (playerConnection != null) {
+                playerConnection.getGameList().remove(game);
+            }
+        }
+    }
+
+    static Games games() {
+        return games;
+    }
+
+    // With SO_REUSEPORT every receiver gets its own socket on the port and the kernel spreads clients
+    // across them. Without it the receivers share one channel.
+    private static List<DatagramChannel> openUdpChannels(int receivers) throws IOException {
+        List<DatagramChannel> channels = new ArrayList<>();
+        DatagramChannel first = DatagramChannel.open();
+        boolean reusePort = receivers > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (reusePort) {
+            first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        first.bind(new InetSocketAddress(port));
+        channels.add(first);
+        for (int i = 1; reusePort && i < receivers; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(new InetSocketAddress(port));
+            channels.add(channel);
+        }
+        Log.info(receivers + " UDP receivers on " + channels.size() + " socket(s)");
+        return channels;
+    }
+
+    // Datagrams are received into pooled buffers and the sender's connection is found by its address.
+    // Requests naming a game go to that game's worker so its MOVEs are applied in arrival order; other
+    // requests go to the sender's worker. A datagram starting with 0x1D is wrapped by ReliableUdp; any
+    // other starting with a byte below 0x20 is a v2 message.
+    private static void handleUdpRequests(DatagramChannel udpChannel) {
         while (true) {
+            ByteBuffer buffer = udpBuffers.acquire();
             try {
-                byte[] buffer = new byte[MAX_PACKET_SIZE];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                udpSocket.receive(packet);
-
-                ClientConnection clientConnection = null;
-                InetAddress clientAddress = packet.getAddress();
-                int clientPort = packet.getPort();
-                for (ClientConnection c : clientConnections.values()) {
-                    if (c.getClientAddress().equals(clientAddress) && c.getClientPort() == clientPort) {
-                        clientConnection = c;
-                        break;
-                    }
-                }
-                if (clientConnection == null) { 
-                    System.out.println("UDP CLIENT CONNECTED");
-                    clientConnection = new ClientConnection(udpSocket, clientAddress, clientPort);
+                InetSocketAddress from = (InetSocketAddress) udpChannel.receive(buffer);
+                buffer.flip();
+                Metrics.bytesReceived(buffer.limit());
+                if (ReliableUdp.isReliable(buffer)) {
+                    handleReliableDatagram(udpChannel, from, buffer);
+                    udpBuffers.release(buffer);
+                    continue;
                 }
-                final ClientConnection finalClientConnection = clientConnection;
-                String request = new String(packet.getData(), 0, packet.getLength());
-                System.out.println("[UDP REQUEST] " + request);
-
-                exec.execute(() -> {
-                    handleClientRequest(finalClientConnection, request);
-                });
+                ClientConnection clientConnection = udpSessions.sessionFor(from, udpChannel);
+                int key = TttpRequest.routingKey(buffer, buffer.limit(), from.hashCode());
+                executeUdpRequest(key, clientConnection, buffer);
             } catch (IOException e) {
+                udpBuffers.release(buffer);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // A wrapped datagram is ACKed and put in order by its stream's ReliableUdp before any of it reaches
+    // a worker. The payloads it releases are copied out and all go to the stream's worker, which keeps
+    // them in the order ReliableUdp handed them over.
+    private static void handleReliableDatagram(DatagramChannel udpChannel, InetSocketAddress from, ByteBuffer datagram) throws IOException {
+        int stream = ReliableUdp.streamOf(datagram);
+        if (stream < 0) {
+            return;
+        }
+        ClientConnection clientConnection = udpSessions.streamSessionFor(from, stream, ReliableUdp.opensStream(datagram), udpChannel);
+        if (clientConnection == null) {
+            return;
+        }
+        int key = clientConnection.getUdpKey().hashCode();
+        clientConnection.getReliableUdp().receive(datagram, payload -> {
+            ByteBuffer copy = udpBuffers.acquire();
+            copy.put(payload).flip();
+            executeUdpRequest(key, clientConnection, copy);
+        });
+    }
+
+    private static void executeUdpRequest(int key, ClientConnection clientConnection, ByteBuffer buffer) {
+        udpWorkers.execute(key, () -> {
+            TttpRequest request = threadRequest.get();
+            boolean parsed = buffer.limit() > 0 && TttpV2.isMessage(buffer.get(0))
+                ? request.parseMessage(buffer, 0, buffer.limit())
+                : request.parse(buffer, 0, buffer.limit());
+            udpBuffers.release(buffer);
+            if (parsed) {
+                Log.debug("[UDP REQUEST] ", request);
+                handleRequestType(clientConnection, request);
+            }
+        });
+    }
+
+    private static void startExpiringSessions(long sessionTimeoutMillis) {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> {
+            try {
+                expireDetachedSessions(sessionTimeoutMillis);
+            } catch (RuntimeException e) {
+                // A failure must not stop the sweeper, which would leak every later session
                 e.printStackTrace();
             }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // An expired UDP client loses its address but keeps its session, which a HELO from any address can
+    // resume until the session timeout, along with any place in the matchmaking queue
+    private static void forgetUdpClient(ClientConnection clientConnection) {
+        clientConnection.close();
+    }
+
+    // TCP connections are multiplexed over a few selector loops instead of one pool thread each. The
+    // first loop also accepts connections and spreads them across all loops.
+    private static void handleTcpRequests(int ioThreads, int maxQueuedBytes) throws IOException {
+        TcpEventLoop[] loops = new TcpEventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new TcpEventLoop(TicTacToeServer::handleRequestType, maxQueuedBytes, tcpIdleTimeoutMillis);
+        }
+        loops[0].accept(tcpChannel, loops);
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "tcp-loop-" + i).start();
         }
     }
 
-    private static void handleTcpRequests() {
+    // Each TCP session gets its own (virtual) thread blocking on readLine
+    private static void handleBlockingTcpRequests() {
         while (true) {
             try {
                 Socket clientSocket = tcpSocket.accept();
-                System.out.println("TCP CLIENT CONNECTED");
+                clientSocket.setSoTimeout(tcpIdleTimeoutMillis);
+                Log.info("TCP CLIENT CONNECTED");
                 exec.execute(() -> {
+                    ClientConnection clientConnection = null;
                     try {
-                        ClientConnection clientConnection = new ClientConnection(clientSocket);
-                        while(true) {
-                            String request = clientConnection.readRequest();
-                            System.out.println("[TCP REQUEST] " + request);
+                        clientConnection = new ClientConnection(clientSocket);
+                        String request;
+                        while ((request = clientConnection.readRequest()) != null) {
+                            Metrics.bytesReceived(request.length() + 2);
+                            Log.debug("[TCP REQUEST] ", request);
                             handleClientRequest(clientConnection, request);
                         }
+                        Log.info("TCP CLIENT DISCONNECTED");
                     } catch (IOException e) {
-                        e.printStackTrace();
+                        Log.info("TCP CLIENT DISCONNECTED: ", e.getMessage());
+                    } finally {
+                        if (clientConnection != null) {
+                            clientConnection.close();
+                        }
+                        Metrics.flushThread();
                     }
                 });
             } catch (IOException e) {
@@ -88,15 +315,26 @@ public class TicTacToeServer {
         }
     }
 
-    private static void handleClientRequest(ClientConnection clientConnection, String request) {
-        String[] requestParts = request.split(" ");
-        String requestType = requestParts[0];
-        String[] parameters = new String[requestParts.length - 1];
-        System.arraycopy(requestParts, 1, parameters, 0, parameters.length);
-        handleRequestType(requestType, parameters, clientConnection);
+    // Lines that arrive as strings (UDP, blocking TCP, bots) are parsed into a request reused per thread
+    static void handleClientRequest(ClientConnection clientConnection, String request) {
+        TttpRequest parsedRequest = threadRequest.get();
+        if (parsedRequest.parse(request)) {
+            handleRequestType(clientConnection, parsedRequest);
+        }
+    }
+
+    // Responses are built in a StringBuilder each thread reuses and encoded from it straight into the
+    // connection's output buffer, so a response costs no String. A response must be sent before the
+    // thread starts building its next one.
+    private static final ThreadLocal<StringBuilder> responseBuilders = ThreadLocal.withInitial(() -> new StringBuilder(128));
+
+    private static StringBuilder response(String verb) {
+        StringBuilder response = responseBuilders.get();
+        response.setLength(0);
+        return response.append(verb);
     }
 
-    private static void sendResponse(ClientConnection clientConnection, String response) {
+    private static void sendResponse(ClientConnection clientConnection, CharSequence response) {
         try {
             clientConnection.sendResponse(response);
         } catch (IOException e) {
@@ -104,187 +342,529 @@ public class TicTacToeServer {
         }
     }
 
-    private static void handleRequestType(String requestType, String[] parameters, ClientConnection clientConnection) {
+    private static void sendEncoded(ClientConnection clientConnection, byte[] line, Game game) {
+        try {
+            clientConnection.sendEncoded(line, game);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Requests naming a game run through that game's mailbox: right away if the game is idle, or after
+    // the requests already queued for it, on the thread running them. Other requests run right away.
+    // The mailbox is the only guard on a game's state, so every handler below that touches a game runs
+    // in its mailbox. Requests are answered in order per game, not per connection: a request for a busy
+    // game can be answered after a later request from the same connection that names another game.
+    static void handleRequestType(ClientConnection clientConnection, TttpRequest request) {
+        int verb = request.getVerb();
+        long start = Metrics.startRequest(verb);
+        Game game = gameNamedBy(request);
+        if (game == null) {
+            runRequest(clientConnection, request, null, verb, start);
+        } else if (game.getMailbox().tryAcquire()) {
+            try {
+                runRequest(clientConnection, request, game, verb, start);
+            } finally {
+                game.getMailbox().release();
+            }
+        } else {
+            // The request object is reused for the caller's next line, so the queued command gets a copy
+            TttpRequest queuedRequest = request.copy();
+            game.getMailbox().enqueue(() -> runRequest(clientConnection, queuedRequest, game, verb, start));
+        }
+    }
+
+    private static void runRequest(ClientConnection clientConnection, TttpRequest request, Game game, int verb,
+                                   long start) {
+        try {
+            dispatchRequest(clientConnection, request, game);
+        } finally {
+            Metrics.recordRequest(verb, start);
+        }
+    }
+
+    // JOIN, STAT, MOVE, QUIT and WTCH take a game ID as their first parameter
+    private static boolean namesGame(TttpRequest request) {
+        int verb = request.getVerb();
+        return request.getParameterCount() > 0 && (verb == TttpRequest.JOIN || verb == TttpRequest.STAT
+            || verb == TttpRequest.MOVE || verb == TttpRequest.QUIT || verb == TttpRequest.WTCH);
+    }
+
+    private static Game gameNamedBy(TttpRequest request) {
+        if (!namesGame(request)) {
+            return null;
+        }
+        return games.getGame(request.getParameter(0));
+    }
+
+    // game is the live game the request names, if any
+    private static void dispatchRequest(ClientConnection clientConnection, TttpRequest request, Game game) {
         // Determine the message type and call the appropriate handler method
-        if (requestType.equals("HELO")) {
-            String heloResponse = handleHELORequest(parameters, clientConnection);
-            sendResponse(clientConnection, heloResponse);
-        } else if (requestType.equals("LIST")) {
-            String listResponse = handleLISTRequest(parameters);
-            sendResponse(clientConnection, listResponse);
-        } else if (requestType.equals("CREA")) {
-            String creaResponse = handleCREARequest(parameters, clientConnection);
-            System.out.println("CreateResponse:  " + creaResponse);
+        int verb = request.getVerb();
+        if (cluster != null) {
+            CharSequence redirect = redirectFor(request);
+            if (redirect != null) {
+                sendResponse(clientConnection, redirect);
+                return;
+            }
+        }
+        if (verb == TttpRequest.HELO) {
+            handleHELORequest(request, clientConnection);
+        } else if (verb == TttpRequest.LIST) {
+            // null for a LIST that covers the other nodes of a cluster. It is answered once they have,
+            // from the thread that got the last of their answers, so later replies can overtake it.
+            CharSequence listResponse = handleLISTRequest(request, clientConnection);
+            if (listResponse != null) {
+                sendResponse(clientConnection, listResponse);
+            }
+        } else if (verb == TttpRequest.CREA) {
+            CharSequence creaResponse = handleCREARequest(request, clientConnection);
             sendResponse(clientConnection, creaResponse);
-        } else if (requestType.equals("JOIN")) {
-            String joinResponse = handleJOINRequest(parameters, clientConnection);
+        } else if (verb == TttpRequest.JOIN) {
+            CharSequence joinResponse = handleJOINRequest(request, clientConnection);
             sendResponse(clientConnection, joinResponse);
-            if (!joinResponse.equals("JOND_ERR")) {
-                sendYRMV(parameters[0], clientConnection);
-            }
-        } else if (requestType.equals("STAT")) {
-            String statResponse = handleSTATRequest(parameters, clientConnection);
-            sendResponse(clientConnection, statResponse);
-        } else if (requestType.equals("MOVE")) {
-            String moveResponse = handleMOVERequest(parameters, clientConnection);
-            sendResponse(clientConnection, moveResponse);
-
-            boolean gameIsDone = checkIfDone(parameters[0]);
-
-            if (!moveResponse.equals("MOVE_ERR") && !gameIsDone) {
-                sendYRMV(parameters[0], clientConnection);
-            } else if (gameIsDone) {
-                buildTERMResponse(parameters[0], clientConnection);
-            }
-        } else if (requestType.equals("GDBY")) {
-            String gdbyResponse = handleGDBYRequest(parameters, clientConnection);
-            sendResponse(clientConnection, gdbyResponse);
-            clientConnection.close();
-        } else if (requestType.equals("QUIT")) {
-            boolean quitSuccess = handleQUITRequest(parameters, clientConnection);
+            if (!"JOND_ERR".contentEquals(joinResponse)) {
+                sendYRMV(request.getParameter(0), clientConnection);
+            }
+        } else if (verb == TttpRequest.STAT) {
+            byte[] board = handleSTATRequest(request, clientConnection);
+            if (board != null) {
+                sendEncoded(clientConnection, board, game);
+            } else {
+                sendResponse(clientConnection, "STAT_ERR");
+            }
+        } else if (verb == TttpRequest.MOVE) {
+            byte[] board = handleMOVERequest(request, clientConnection);
+            if (board != null) {
+                sendEncoded(clientConnection, board, game);
+                spectators.publish(request.getParameter(0), board);
+            } else {
+                sendResponse(clientConnection, "MOVE_ERR");
+            }
+
+            boolean gameIsDone = checkIfDone(request.getParameter(0));
+
+            if (board != null && !gameIsDone) {
+                sendYRMV(request.getParameter(0), clientConnection);
+            } else if (board != null) {
+                buildTERMResponse(request.getParameter(0), clientConnection);
+            }
+        } else if (verb == TttpRequest.GDBY) {
+            String gdbyResponse = handleGDBYRequest(request, clientConnection);
+            if (clientConnection.isUdpConnection() && clientConnection.getReliableUdp() == null) {
+                // Forget the session before answering, or a HELO sent as soon as the answer arrives
+                // could still reach the old session and leave the new one without a client ID. A
+                // reliable client's next HELO opens a new stream, so it never reaches this one. After
+                // GDBY_ERR the session goes on: closed, it would keep the answer, and the answer to
+                // whatever the client sent next from the same address, for a reconnect.
+                if (gdbyResponse.equals("GDBY")) {
+                    clientConnection.close();
+                }
+                sendResponse(clientConnection, gdbyResponse);
+            } else {
+                sendResponse(clientConnection, gdbyResponse);
+                clientConnection.close();
+            }
+        } else if (verb == TttpRequest.MTCH) {
+            handleMTCHRequest(request, clientConnection);
+        } else if (verb == TttpRequest.WTCH) {
+            if (!handleWTCHRequest(request, clientConnection)) {
+                sendResponse(clientConnection, "WTCH_ERR");
+            }
+        } else if (verb == TttpRequest.QUIT) {
+            boolean quitSuccess = handleQUITRequest(request, clientConnection);
             if (!quitSuccess) {
               sendResponse(clientConnection, "QUIT_ERR");
             }
         } else {
-            sendResponse(clientConnection, "METHOD NOT FOUND: " + requestType);
+            sendResponse(clientConnection, response("METHOD NOT FOUND: ").append(request.getVerbText()));
         }
     }
 
-    private static String handleHELORequest(String[] parameters, ClientConnection clientConnection) {
-        if (parameters.length == 2) {
-            String version = parameters[0];
+    // HELO <version> <clientId> [<sessionId>]. With the ID of a session whose connection was lost, the
+    // new connection takes over that session and its games; otherwise a new session starts. SESS goes
+    // out in the encoding the HELO came in, and everything after it in the version SESS names.
+    private static void handleHELORequest(TttpRequest request, ClientConnection clientConnection) {
+        if (request.getParameterCount() == 3 && resumeSession(request, clientConnection)) {
+            return;
+        }
+        // Client IDs go into the journal, which stores strings behind a short length
+        if ((request.getParameterCount() == 2 || request.getParameterCount() == 3)
+            && request.getParameter(1).length() <= MoveJournal.MAX_STRING_LENGTH) {
+            String version = request.getParameter(0);
+            String previousSessionId = clientConnection.getSessionId();
+            if (previousSessionId != null) {
+                sessions.remove(previousSessionId, clientConnection);
+            }
             String sessionId = clientConnection.setSessionId();
-            String clientId = parameters[1];
+            String clientId = request.getParameter(1);
             clientConnection.setClientId(clientId);
 
-            int compatibleProtocolVersion = protocolVersionSupported(version);
+            int compatibleProtocolVersion = protocolVersionSupported(version, clientConnection);
             if (compatibleProtocolVersion == -1) {
-                return "PROT_VER_ERR"; // adjust to correct error response
+                sendResponse(clientConnection, "PROT_VER_ERR"); // adjust to correct error response
             } else {
                 clientConnections.put(clientId, clientConnection);
-                return "SESS " + compatibleProtocolVersion + " " + sessionId;
+                sessions.put(sessionId, clientConnection);
+                sendResponse(clientConnection, response("SESS ").append(compatibleProtocolVersion).append(' ').append(sessionId));
+                clientConnection.setProtocolVersion(compatibleProtocolVersion);
             }
         } else {
-            return "SESS_ERR";
+            sendResponse(clientConnection, "SESS_ERR");
+        }
+    }
+
+    // The session must belong to the same client and still be its current one. The responses the old
+    // connection kept are sent after SESS, and a place in the matchmaking queue moves to the new
+    // connection. Only then is the old one closed, in case it only looked alive: a matcher that takes
+    // it from the queue before that finds it open and its sends already handed on.
+    private static boolean resumeSession(TttpRequest request, ClientConnection clientConnection) {
+        String clientId = request.getParameter(1);
+        String sessionId = request.getParameter(2);
+        ClientConnection previous = sessions.get(sessionId);
+        if (previous == null || previous == clientConnection || !clientId.equals(previous.getClientId())
+            || clientConnections.get(clientId) != previous) {
+            return false;
+        }
+        int compatibleProtocolVersion = protocolVersionSupported(request.getParameter(0), clientConnection);
+        if (compatibleProtocolVersion == -1) {
+            return false;
+        }
+        try {
+            clientConnection.resume(previous, response("SESS ").append(compatibleProtocolVersion).append(' ').append(sessionId),
+                compatibleProtocolVersion);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        sessions.replace(sessionId, previous, clientConnection);
+        clientConnections.replace(clientId, previous, clientConnection);
+        matchmaker.replace(previous, clientConnection);
+        previous.close();
+        Log.info("SESSION RESUMED: ", clientId);
+        return true;
     }
 
-    private static int protocolVersionSupported(String version) {
+    // The client's version, capped at what its connection can carry: a v2 client on a blocking TCP
+    // session is answered with SESS 1 and carries on in text
+    private static int protocolVersionSupported(String version, ClientConnection clientConnection) {
         int clientProtocolVersion = Integer.parseInt(version);
         if (clientProtocolVersion <= PROTOCOL_VERSION) {
-            return Math.min(clientProtocolVersion, PROTOCOL_VERSION);
+            return Math.min(clientProtocolVersion, clientConnection.getMaxProtocolVersion());
         }
         return -1;
     }
 
-    private static String handleLISTRequest(String[] parameters) {
-        if (parameters.length == 0) {
-            return "GAMS" + games.getGamesByType("OPEN");
-        } else if (parameters.length == 1 && (parameters[0].equals("CURR") || parameters[0].equals("ALL"))) {
-            return "GAMS" + games.getGamesByType(parameters[0]);
+    // In a cluster a request naming a game another node owns is answered with RDIR <gameId> <host:port>,
+    // and the client sends it there instead, after a HELO if it has no session on that node yet
+    private static CharSequence redirectFor(TttpRequest request) {
+        if (!namesGame(request)) {
+            return null;
+        }
+        String gameId = request.getParameter(0);
+        int shard = games.shardOf(gameId);
+        if (shard < 0 || cluster.isLocal(shard)) {
+            return null;
+        }
+        return response("RDIR ").append(gameId).append(' ').append(cluster.getAddressOf(shard));
+    }
+
+    // LIST [OPEN|CURR|ALL [<offset> <limit>]] lists open games by default, optionally one page at a time.
+    // In a cluster the list covers every node, unless the request ends with LOCAL as when nodes ask
+    // each other.
+    private static CharSequence handleLISTRequest(TttpRequest request, ClientConnection clientConnection) {
+        int parameterCount = request.getParameterCount();
+        boolean localOnly = parameterCount > 0 && request.parameterEquals(parameterCount - 1, "LOCAL");
+        if (localOnly) {
+            parameterCount--;
+        }
+        if (parameterCount == 0) {
+            return listGames(clientConnection, "OPEN", 0, Integer.MAX_VALUE, localOnly);
+        }
+        String type;
+        if (request.parameterEquals(0, "OPEN")) {
+            type = "OPEN";
+        } else if (request.parameterEquals(0, "CURR")) {
+            type = "CURR";
+        } else if (request.parameterEquals(0, "ALL")) {
+            type = "ALL";
+        } else {
+            return "GAMS_ERR";
+        }
+        if (parameterCount == 1) {
+            return listGames(clientConnection, type, 0, Integer.MAX_VALUE, localOnly);
+        }
+        if (parameterCount == 3) {
+            try {
+                int offset = request.getIntParameter(1);
+                int limit = request.getIntParameter(2);
+                if (offset >= 0 && limit >= 0) {
+                    return listGames(clientConnection, type, offset, limit, localOnly);
+                }
+            } catch (NumberFormatException e) {
+                return "GAMS_ERR";
+            }
         }
         return "GAMS_ERR";
     }
 
-    private static String handleCREARequest(String[] parameters, ClientConnection clientConnection) {
-        if (parameters.length == 1) {
-            String clientId = parameters[0];
-            Game newGame = games.createGame(clientId);
+    // The GAMS reply, or null when the other nodes are asked and the reply is sent once they answer
+    private static CharSequence listGames(ClientConnection clientConnection, String type, int offset, int limit,
+                                          boolean localOnly) {
+        if (cluster == null || localOnly) {
+            return games.appendGamesByType(response("GAMS"), type, offset, limit);
+        }
+        cluster.listGames(type, offset, limit, games)
+            .thenAccept(gameIds -> sendResponse(clientConnection, response("GAMS").append(gameIds)));
+        return null;
+    }
+
+    // CREA <clientId> [<size> <winLength>] [BOT] creates an N x N board won by k in a row, 3 x 3 by
+    // default. With BOT a server-side player joins the new game.
+    private static CharSequence handleCREARequest(TttpRequest request, ClientConnection clientConnection) {
+        int parameterCount = request.getParameterCount();
+        boolean withBot = parameterCount > 1 && request.parameterEquals(parameterCount - 1, "BOT");
+        if (withBot) {
+            parameterCount--;
+        }
+        if ((parameterCount == 1 || parameterCount == 3)
+            && request.getParameter(0).length() <= MoveJournal.MAX_STRING_LENGTH) {
+            String clientId = request.getParameter(0);
+            int size = Game.DEFAULT_SIZE;
+            int winLength = Game.DEFAULT_SIZE;
+            if (parameterCount == 3) {
+                try {
+                    size = request.getIntParameter(1);
+                    winLength = request.getIntParameter(2);
+                } catch (NumberFormatException e) {
+                    return "JOND_ERR";
+                }
+                if (size < Game.DEFAULT_SIZE || size > Game.MAX_SIZE || winLength < 3 || winLength > size) {
+                    return "JOND_ERR";
+                }
+            }
+            Game newGame = games.newGame(clientId, size, winLength);
+            // Nobody else can see the game yet, so its mailbox is free
+            newGame.getMailbox().tryAcquire();
+            try {
+                registerGame(newGame, () -> journal.gameCreated(newGame, clientId));
+            } finally {
+                newGame.getMailbox().release();
+            }
             clientConnection.addToGameList(newGame);
-            System.out.println("hello" + clientId + "bye");
-            return "JOND " + clientId + " " + newGame.getGameId();
+            if (withBot) {
+                BotConnection.joinGame(games, newGame.getGameId());
+            }
+            return response("JOND ").append(clientId).append(' ').append(newGame.getGameId());
         } else {
             return "JOND_ERR";
         }
     }
 
-    private static synchronized String handleJOINRequest(String[] parameters, ClientConnection clientConnection) {
-        if (parameters.length == 1) {
+    // Registers a new game and journals its creation. The caller holds the game's mailbox and lets go
+    // after, the way JOIN and MOVE are journaled in the mailbox. Requests for the game queue until then,
+    // so none of them can reach the journal ahead of CREATE, and a snapshot covering CREATE also finds
+    // the game.
+    private static void registerGame(Game game, Runnable journalRecords) {
+        games.restoreGame(game);
+        if (journal != null) {
+            journalRecords.run();
+        }
+    }
+
+    // Lets a bot join every open game, used to load test the server or to give lone players an opponent
+    private static void joinOpenGamesWithBots(int intervalMillis) {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            String openGames = games.getGamesByType("OPEN");
+            for (String gameId : openGames.trim().split(" ")) {
+                if (!gameId.isEmpty()) {
+                    BotConnection.joinGame(games, gameId);
+                }
+            }
+        }
+    }
+
+    // MTCH [bucket] pairs the caller with the player waiting in the bucket, or leaves the caller waiting.
+    // Both players are answered with JOND once the game exists, so matching takes a single request.
+    // The waiting player can say GDBY while being paired, so the game only goes ahead if it joins that
+    // player's games before they are forfeited; otherwise the caller is matched again. The game's
+    // mailbox is held from then until it is registered, so a forfeit that finds it waits for that.
+    private static void handleMTCHRequest(TttpRequest request, ClientConnection clientConnection) {
+        String clientId = clientConnection.getClientId();
+        if (clientId == null || request.getParameterCount() > 1) {
+            sendResponse(clientConnection, "JOND_ERR");
+            return;
+        }
+        String bucket = request.getParameterCount() == 1 ? request.getParameter(0) : "";
+        ClientConnection opponent;
+        Game game;
+        while (true) {
+            opponent = matchmaker.match(bucket, clientConnection);
+            if (opponent == null) {
+                return;
+            }
+            game = games.newMatchedGame(opponent.getClientId(), clientId);
+            game.getMailbox().tryAcquire();
+            if (opponent.addToGameListIfActive(game)) {
+                break;
+            }
+            game.getMailbox().release();
+        }
+        String opponentId = opponent.getClientId();
+        Game matchedGame = game;
+        String gameId = game.getGameId();
+        try {
+            registerGame(game, () -> {
+                journal.gameCreated(matchedGame, opponentId);
+                journal.playerJoined(matchedGame, clientId);
+            });
+        } finally {
+            game.getMailbox().release();
+        }
+        clientConnection.addToGameList(game);
+        sendResponse(opponent, response("JOND ").append(opponentId).append(' ').append(gameId));
+        sendResponse(clientConnection, response("JOND ").append(clientId).append(' ').append(gameId));
+        game.getMailbox().execute(() -> sendYRMV(gameId, clientConnection));
+    }
+
+    private static CharSequence handleJOINRequest(TttpRequest request, ClientConnection clientConnection) {
+        if (request.getParameterCount() == 1) {
             String clientId = clientConnection.getClientId();
-            String gameId = parameters[0];
+            String gameId = request.getParameter(0);
             if (games.addPlayerToGame(clientId, gameId)) {
-                return "JOND " + clientId + " " + gameId;
+                if (journal != null) {
+                    journal.playerJoined(games.getGame(gameId), clientId);
+                }
+                return response("JOND ").append(clientId).append(' ').append(gameId);
             }
         }
         return "JOND_ERR";
     }
 
-    private static String handleSTATRequest(String[] parameters, ClientConnection clientConnection) {
-      if (parameters.length == 1) {
-        String gameId = parameters[0];
+    // The game's cached BORD snapshot, or null for STAT_ERR
+    private static byte[] handleSTATRequest(TttpRequest request, ClientConnection clientConnection) {
+      if (request.getParameterCount() == 1) {
+        String gameId = request.getParameter(0);
+
+        Game game = games.findGame(gameId);
+        if (game != null) {
+          return bordSnapshot(game);
+        }
+      }
+      return null;
+    }
 
-        return buildBORDResponse(gameId);
+    // WTCH <gameId> subscribes the caller to a game in progress: it gets the board now and a BORD after
+    // every move, then TERM when the game ends
+    private static boolean handleWTCHRequest(TttpRequest request, ClientConnection clientConnection) {
+      if (request.getParameterCount() != 1) {
+        return false;
+      }
+      String gameId = request.getParameter(0);
+      Game game = games.getGame(gameId);
+      if (game == null || !game.isFull() || game.isDone()) {
+        return false;
       }
-      return "STAT_ERR";
+      spectators.watch(game, clientConnection, bordSnapshot(game));
+      return true;
     }
 
-    private static String handleMOVERequest(String[] parameters, ClientConnection clientConnection) {
-      if (parameters.length == 2) {
-        String gameId = parameters[0];
+    // Only the player whose turn it is may move, and only while the game is on; anything else is
+    // MOVE_ERR. Runs in the game's mailbox, so the turn cannot change between the check and the move.
+    private static byte[] handleMOVERequest(TttpRequest request, ClientConnection clientConnection) {
+      if (request.getParameterCount() == 2) {
+        String gameId = request.getParameter(0);
+        String clientId = clientConnection.getClientId();
         Game game = games.getGame(gameId);
+        if (game == null || game.isDone() || clientId == null || !clientId.equals(game.getCurrentPlayer())) {
+          return null;
+        }
+        int size = game.getBoard().getSize();
 
-        if (parameters[1].contains(",")) {
-          String[] coord = parameters[1].split(",");
+        if (request.isCoordinate(1)) {
           try {
-            int x = Integer.parseInt(coord[0]);
-            int y = Integer.parseInt(coord[1]);
-            if (x > 3 || y > 3) {
-              System.out.println("index out of bounds: " + x + " " + y);
-              return buildBORDResponse(gameId);
+            int x = request.getCoordinate(1, 0);
+            int y = request.getCoordinate(1, 1);
+            if (x > size || y > size) {
+              Log.debug("index out of bounds: ", request);
+              return bordSnapshot(game);
             }
 
             boolean goodMove = game.makeMove(x, y);
             if (goodMove) {
               game.switchTurn();
+              if (journal != null) {
+                journal.movePlayed(game, game.getLastMove());
+              }
             }
-            return buildBORDResponse(gameId);
+            return bordSnapshot(game);
 
           } catch (Exception e){
-            return buildBORDResponse(gameId);
+            return bordSnapshot(game);
           }
         } else {
           try {
-            int index = Integer.parseInt(parameters[1]);
-            if (index > 9) {
-              System.out.println("index out of bounds: " + index);
-              return buildBORDResponse(gameId);
+            int index = request.getIntParameter(1);
+            if (index > size * size) {
+              Log.debug("index out of bounds: ", request);
+              return bordSnapshot(game);
             }
 
             boolean goodMove = game.makeMove(index);
             if (goodMove) {
               game.switchTurn();
+              if (journal != null) {
+                journal.movePlayed(game, game.getLastMove());
+              }
             }
-            return buildBORDResponse(gameId);
+            return bordSnapshot(game);
 
           } catch (Exception e) {
-            return buildBORDResponse(gameId);
+            return bordSnapshot(game);
           }
         }
       }
-      return "MOVE_ERR";
+      return null;
+    }
+
+    static String buildBORDResponse(String gameId) {
+      return buildBORDResponse(games.getGame(gameId));
+    }
+
+    // Built at most once per change to the game and shared by every STAT, MOVE reply and spectator
+    // until the next one. Called in the game's mailbox.
+    static byte[] bordSnapshot(Game game) {
+      byte[] snapshot = game.getBordSnapshot();
+      if (snapshot == null) {
+        snapshot = (buildBORDResponse(game) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        game.setBordSnapshot(snapshot);
+      }
+      return snapshot;
     }
 
-    private static String buildBORDResponse(String gameId) {
+    private static String buildBORDResponse(Game game) {
       StringBuilder bordResponse = new StringBuilder();
-      Game game = games.getGame(gameId);
       List<String> players = game.getPlayers();
 
-      bordResponse.append("BORD " + gameId + " ");
+      bordResponse.append("BORD ").append(game.getGameId()).append(' ');
 
-      if (game.isOpen()) {
+      if (players.size() < 2) {
         bordResponse.append(players.get(0));
         return bordResponse.toString();
       }
 
       int firstPlayer = game.getFirstPlayer();
 
-      bordResponse.append(players.get(firstPlayer) + " ");
-      bordResponse.append(players.get(1 - firstPlayer) + " ");
-      bordResponse.append(game.getCurrentPlayer() + " " );
+      bordResponse.append(players.get(firstPlayer)).append(' ');
+      bordResponse.append(players.get(1 - firstPlayer)).append(' ');
+      bordResponse.append(game.getCurrentPlayer()).append(' ');
 
-      List<String> boardList = game.getBoard();
-      String board = buildT3Board(boardList);
-      bordResponse.append(board + " ");
+      String board = buildT3Board(game.getBoard());
+      bordResponse.append(board).append(' ');
 
       if (game.isDone()) {
         bordResponse.append(game.getWinner());
@@ -292,60 +872,120 @@ public class TicTacToeServer {
       return bordResponse.toString();
     }
 
-    private static String buildT3Board(List<String> board) {
+    static String buildT3Board(Board board) {
       StringBuilder t3board = new StringBuilder();
       t3board.append("|");
-      for (int i = 0; i < board.size(); i ++) {
-        t3board.append(board.get(i));
+      for (int i = 1; i <= board.getCellCount(); i ++) {
+        t3board.append(board.markAt(i));
         t3board.append("|");
       }
       return t3board.toString();
     }
 
     private static void sendYRMV(String gameId, ClientConnection clientConnection) {
+        List<String> players;
+        CharSequence yrmvResponse;
         Game game = games.getGame(gameId);
-        for (String clientId : game.getPlayers()) {
+        players = new ArrayList<>(game.getPlayers());
+        yrmvResponse = response("YRMV ").append(gameId).append(' ').append(game.getCurrentPlayer());
+        for (String clientId : players) {
             ClientConnection playerConnection = clientConnections.get(clientId);
-            sendResponse(playerConnection, "YRMV " + gameId + " " + game.getCurrentPlayer());
+            if (playerConnection != null) {
+                sendResponse(playerConnection, yrmvResponse);
+            }
         }
     }
 
     private static boolean checkIfDone(String gameId) {
       Game game = games.getGame(gameId);
-      return game.isDone();
+      return game != null && game.isDone();
     }
 
     private static void buildTERMResponse(String gameId, ClientConnection clientConnection) {
+      List<String> players;
+      List<ClientConnection> viewers;
+      CharSequence termResponse;
       Game game = games.getGame(gameId);
-      for (String clientId : game.getPlayers()) {
+      players = new ArrayList<>(game.getPlayers());
+      viewers = spectators.finish(gameId);
+      termResponse = response("TERM ").append(gameId).append(' ').append(game.getWinner()).append(" KTHXBYE");
+      for (String clientId : players) {
         ClientConnection playerConnection = clientConnections.get(clientId);
-        sendResponse(playerConnection, "TERM " + gameId + " " + game.getWinner() + " KTHXBYE");
+        if (playerConnection != null) {
+          sendResponse(playerConnection, termResponse);
+        }
+      }
+      for (ClientConnection viewer : viewers) {
+        if (viewer.isOpen()) {
+          sendResponse(viewer, termResponse);
+        }
       }
     }
 
-    private static String handleGDBYRequest(String[] parameters, ClientConnection clientConnection) {
-      if (parameters.length == 1) {
-        String clientId = clientConnection.getClientId();
-        ArrayList<Game> gameList = clientConnection.getGameList();
-        for (Game game : gameList) {
+    private static String handleGDBYRequest(TttpRequest request, ClientConnection clientConnection) {
+      if (request.getParameterCount() == 1) {
+        String sessionId = clientConnection.getSessionId();
+        if (sessionId != null) {
+          sessions.remove(sessionId, clientConnection);
+        }
+        clientConnection.endSession();
+        endClient(clientConnection);
+        return "GDBY";
+      }
+      return "GDBY_ERR";
+    }
+
+    // Forfeits the client's unfinished games, as after GDBY or when its session expires. Each forfeit
+    // runs in its game's mailbox, so a busy game is forfeited once its queued requests have run.
+    private static void endClient(ClientConnection clientConnection) {
+      matchmaker.cancel(clientConnection);
+      String clientId = clientConnection.getClientId();
+      List<Game> gameList = clientConnection.endGameList();
+      for (Game game : gameList) {
+        game.getMailbox().execute(() -> {
           if (!game.isDone()) {
-            game.finishGame();
             game.setWinner(clientId);
-            buildTERMResponse(clientId, clientConnection);
+            game.finishGame();
+            if (journal != null) {
+              journal.gameQuit(game, clientId);
+            }
+            buildTERMResponse(game.getGameId(), clientConnection);
           }
+        });
+      }
+      if (clientId != null) {
+        clientConnections.remove(clientId, clientConnection);
+      }
+    }
+
+    // Sessions whose connection has been gone for the session timeout can no longer be resumed, and
+    // their games are forfeited
+    private static void expireDetachedSessions(long sessionTimeoutMillis) {
+      long cutoff = System.currentTimeMillis() - sessionTimeoutMillis;
+      for (Map.Entry<String, ClientConnection> session : sessions.entrySet()) {
+        ClientConnection clientConnection = session.getValue();
+        if (!clientConnection.isOpen() && clientConnection.getClosedAt() < cutoff
+            && sessions.remove(session.getKey(), clientConnection)) {
+          Log.info("SESSION EXPIRED: ", clientConnection.getClientId());
+          endClient(clientConnection);
         }
-        return "GDBY";
       }
-      return "GDBY_ERR";
     }
 
-    private static boolean handleQUITRequest(String[] parameters, ClientConnection clientConnection) {
-      if (parameters.length == 1) {
-        String gameId = parameters[0];
+    private static boolean handleQUITRequest(TttpRequest request, ClientConnection clientConnection) {
+      if (request.getParameterCount() == 1) {
+        String gameId = request.getParameter(0);
         String clientId = clientConnection.getClientId();
         Game game = games.getGame(gameId);
-        game.finishGame();
+        // A finished game keeps its result, which the evictor may be archiving
+        if (game == null || game.isDone()) {
+          return false;
+        }
         game.setWinner(clientId);
+        game.finishGame();
+        if (journal != null) {
+          journal.gameQuit(game, clientId);
+        }
 
         buildTERMResponse(gameId, clientConnection);
         return true;
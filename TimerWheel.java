@@ -0,0 +1,92 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// A hashed timer wheel: timers go into the slot of the tick they are due on, and one thread visits a
+// slot per tick, so scheduling thousands of short retransmit timers costs a queue add each rather than
+// a priority queue shared by every sender. New timers are handed to the wheel's thread, which files
+// them into their slots itself before each visit, so a timer can never land in a slot the thread has
+// just left and wait out a whole rotation. There is no cancel; a timer that is no longer needed finds
+// nothing to do when it runs. Timers run on the wheel's thread, must be quick and are late by up to
+// one tick.
+class TimerWheel {
+    private final long tickMillis;
+    private final Queue<Timer> scheduled = new ConcurrentLinkedQueue<>();
+    // Only touched by the wheel's thread
+    private final List<Queue<Timer>> slots;
+    private final int mask;
+    private volatile long currentTick;
+
+    private static final class Timer {
+        final long dueTick;
+        final Runnable task;
+
+        Timer(long dueTick, Runnable task) {
+            this.dueTick = dueTick;
+            this.task = task;
+        }
+    }
+
+    public TimerWheel(String name, long tickMillis, int slotCount) {
+        this.tickMillis = tickMillis;
+        int size = Integer.highestOneBit(Math.max(2, slotCount) * 2 - 1);
+        this.slots = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            slots.add(new ArrayDeque<>());
+        }
+        this.mask = size - 1;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Due at least one full tick from now. A timer whose tick the wheel reaches before filing it runs on
+    // that tick.
+    public void schedule(long delayMillis, Runnable task) {
+        long dueTick = currentTick + Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        scheduled.add(new Timer(dueTick, task));
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        while (true) {
+            long tick = currentTick + 1;
+            long sleepMillis = start / 1_000_000 + tick * tickMillis - System.nanoTime() / 1_000_000;
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            currentTick = tick;
+            for (Timer timer; (timer = scheduled.poll()) != null; ) {
+                if (timer.dueTick <= tick) {
+                    fire(timer);
+                } else {
+                    slots.get((int) (timer.dueTick & mask)).add(timer);
+                }
+            }
+            Queue<Timer> slot = slots.get((int) (tick & mask));
+            // Timers a whole rotation or more away share the slot and go back in for a later visit
+            for (int pending = slot.size(); pending > 0; pending--) {
+                Timer timer = slot.poll();
+                if (timer.dueTick > tick) {
+                    slot.add(timer);
+                } else {
+                    fire(timer);
+                }
+            }
+        }
+    }
+
+    private static void fire(Timer timer) {
+        try {
+            timer.task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// A request line parsed in place. The line is copied into a reusable byte array, the verb is read as
+// one big-endian int so dispatch is a switch, and parameters are kept as offsets into the line. Only
+// the parameters a handler asks for as strings are ever allocated.
+class TttpRequest {
+    // Constant expressions, so the verbs can label the cases of a switch
+    public static final int HELO = 'H' << 24 | 'E' << 16 | 'L' << 8 | 'O';
+    public static final int LIST = 'L' << 24 | 'I' << 16 | 'S' << 8 | 'T';
+    public static final int CREA = 'C' << 24 | 'R' << 16 | 'E' << 8 | 'A';
+    public static final int JOIN = 'J' << 24 | 'O' << 16 | 'I' << 8 | 'N';
+    public static final int STAT = 'S' << 24 | 'T' << 16 | 'A' << 8 | 'T';
+    public static final int MOVE = 'M' << 24 | 'O' << 16 | 'V' << 8 | 'E';
+    public static final int GDBY = 'G' << 24 | 'D' << 16 | 'B' << 8 | 'Y';
+    public static final int QUIT = 'Q' << 24 | 'U' << 16 | 'I' << 8 | 'T';
+    public static final int MTCH = 'M' << 24 | 'T' << 16 | 'C' << 8 | 'H';
+    public static final int WTCH = 'W' << 24 | 'T' << 16 | 'C' << 8 | 'H';
+
+    private static final int INITIAL_LINE_LENGTH = 1024;
+    private static final int MAX_PARAMETERS = 16;
+
+    private byte[] line;
+    private int length;
+    private int verb;
+    private int verbEnd;
+    private int parameterCount;
+    private final int[] starts;
+    private final int[] ends;
+    private final String[] parameters;
+
+    public TttpRequest() {
+        this.line = new byte[INITIAL_LINE_LENGTH];
+        this.starts = new int[MAX_PARAMETERS];
+        this.ends = new int[MAX_PARAMETERS];
+        this.parameters = new String[MAX_PARAMETERS];
+    }
+
+    // Parses the bytes from start up to end, dropping a trailing \r\n, \n or \r. Returns false for a
+    // blank line.
+    public boolean parse(ByteBuffer buffer, int start, int end) {
+        if (end > start && buffer.get(end - 1) == '\n') {
+            end--;
+        }
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        ensureCapacity(end - start);
+        for (int i = start; i < end; i++) {
+            line[i - start] = buffer.get(i);
+        }
+        return parse(end - start);
+    }
+
+    // Decodes a TTTP v2 message between start and end and parses the line it stands for. Returns false
+    // for bytes that are not a message, which are dropped like a blank line.
+    public boolean parseMessage(ByteBuffer buffer, int start, int end) {
+        int length;
+        while ((length = TttpV2.decode(buffer, start, end, line)) == TttpV2.OVERFLOW) {
+            line = new byte[line.length * 2];
+        }
+        if (length == TttpV2.MALFORMED) {
+            Log.debug("malformed v2 message, bytes: ", end - start);
+            return false;
+        }
+        return parse(length);
+    }
+
+    // Hashes the game ID of a JOIN, STAT, MOVE, QUIT or WTCH datagram without parsing it, so the receiving
+    // thread can send every request for one game to the same worker. Other requests get the fallback.
+    public static int routingKey(ByteBuffer buffer, int end, int fallback) {
+        if (end > 0 && TttpV2.isMessage(buffer.get(0))) {
+            return TttpV2.routingKey(buffer, end, fallback);
+        }
+        if (end < 6) {
+            return fallback;
+        }
+        int verb = (buffer.get(0) & 0xFF) << 24 | (buffer.get(1) & 0xFF) << 16
+            | (buffer.get(2) & 0xFF) << 8 | (buffer.get(3) & 0xFF);
+        if (verb != JOIN && verb != STAT && verb != MOVE && verb != QUIT && verb != WTCH) {
+            return fallback;
+        }
+        int position = 4;
+        while (position < end && buffer.get(position) == ' ') {
+            position++;
+        }
+        int hash = 0;
+        for (; position < end; position++) {
+            byte b = buffer.get(position);
+            if (b == ' ' || b == '\r' || b == '\n') {
+                break;
+            }
+            hash = 31 * hash + b;
+        }
+        return hash;
+    }
+
+    public boolean parse(String request) {
+        int end = request.length();
+        if (end > 0 && request.charAt(end - 1) == '\n') {
+            end--;
+        }
+        if (end > 0 && request.charAt(end - 1) == '\r') {
+            end--;
+        }
+        ensureCapacity(end);
+        for (int i = 0; i < end; i++) {
+            line[i] = (byte) request.charAt(i);
+        }
+        return parse(end);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (line.length < capacity) {
+            line = new byte[Math.max(capacity, line.length * 2)];
+        }
+    }
+
+    // Splits the line on runs of spaces; words past the last parameter slot are ignored
+    private boolean parse(int length) {
+        this.length = length;
+        this.parameterCount = 0;
+        int position = skipSpaces(0);
+        if (position == length) {
+            return false;
+        }
+        int verbStart = position;
+        while (position < length && line[position] != ' ') {
+            position++;
+        }
+        this.verbEnd = position;
+        this.verb = 0;
+        if (verbEnd - verbStart == 4) {
+            verb = (line[verbStart] & 0xFF) << 24 | (line[verbStart + 1] & 0xFF) << 16
+                | (line[verbStart + 2] & 0xFF) << 8 | (line[verbStart + 3] & 0xFF);
+        }
+
+        position = skipSpaces(position);
+        while (position < length && parameterCount < MAX_PARAMETERS) {
+            starts[parameterCount] = position;
+            while (position < length && line[position] != ' ') {
+                position++;
+            }
+            ends[parameterCount] = position;
+            parameters[parameterCount] = null;
+            parameterCount++;
+            position = skipSpaces(position);
+        }
+        return true;
+    }
+
+    private int skipSpaces(int position) {
+        while (position < length && line[position] == ' ') {
+            position++;
+        }
+        return position;
+    }
+
+    // One of the verb constants, or 0 when the first word is not four bytes long
+    public int getVerb() {
+        return verb;
+    }
+
+    public String getVerbText() {
+        int start = skipSpaces(0);
+        return new String(line, start, verbEnd - start, StandardCharsets.US_ASCII);
+    }
+
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    // Decodes the parameter once per request, later calls return the same string
+    public String getParameter(int index) {
+        String parameter = parameters[index];
+        if (parameter == null) {
+            parameter = new String(line, starts[index], ends[index] - starts[index], StandardCharsets.US_ASCII);
+            parameters[index] = parameter;
+        }
+        return parameter;
+    }
+
+    public boolean parameterEquals(int index, String value) {
+        int start = starts[index];
+        if (ends[index] - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (line[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getIntParameter(int index) {
+        return parseInt(starts[index], ends[index]);
+    }
+
+    public boolean isCoordinate(int index) {
+        return commaIn(index) != -1;
+    }
+
+    // The x (axis 0) or y (axis 1) half of an x,y parameter
+    public int getCoordinate(int index, int axis) {
+        int comma = commaIn(index);
+        return axis == 0 ? parseInt(starts[index], comma) : parseInt(comma + 1, ends[index]);
+    }
+
+    private int commaIn(int index) {
+        for (int i = starts[index]; i < ends[index]; i++) {
+            if (line[i] == ',') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int parseInt(int start, int end) {
+        boolean negative = start < end && line[start] == '-';
+        int position = negative ? start + 1 : start;
+        if (position == end || end - position > 9) {
+            throw new NumberFormatException(new String(line, start, end - start, StandardCharsets.US_ASCII));
+        }
+        int value = 0;
+        for (; position < end; position++) {
+            int digit = line[position] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException(new String(line, start, end - start, StandardCharsets.US_ASCII));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    // An independent copy, for requests that are handled after the reused original has moved on
+    public TttpRequest copy() {
+        TttpRequest copy = new TttpRequest();
+        copy.parse(toString());
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return new String(line, 0, length, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,559 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// TTTP version 2, the binary encoding a client can ask for in HELO. Every v1 line has a v2 message that
+// decodes back to exactly the same line, so handlers keep working on text and only the bytes on the wire
+// change. A message is an opcode byte followed by the line's words, each encoded by its type in the
+// verb's schema:
+//
+//   n  a number, as a varint             g  a game ID GID<n>, as the varint n
+//   s  a varint length and ASCII bytes   r  0 and a string, or 1 or 2 to repeat the message's first or
+//                                           second string
+//   m  a MOVE slot 2n, or x,y as 64x+2y+1, as a varint
+//   b  a board |X|*|O|..., as the varint cell count and five cells per byte in base 3 (2 bytes for 3 x 3)
+//
+// A trailing * repeats the type before it. Lines that do not fit their schema are sent as TEXT, and
+// <verb>_ERR as ERR with the verb's opcode. Opcodes are below 0x20, so a v2 datagram can never be taken
+// for a text one. On TCP each message is preceded by its length as a varint.
+class TttpV2 {
+    public static final int TEXT = 0x1F;
+    public static final int ERR = 0x17;
+    public static final int MALFORMED = -1;
+    public static final int OVERFLOW = -2;
+
+    private static final String[] NAMES = new String[32];
+    private static final String[] SCHEMAS = new String[32];
+    // Verbs hashed into a table twice the size of the opcode space, so a lookup is one or two probes
+    private static final int[] OPCODES = new int[64];
+    private static final int[] VERBS = new int[64];
+    private static final byte[] MARKS = {'*', 'X', 'O'};
+
+    static {
+        define(0x01, "HELO", "nss");
+        define(0x02, "LIST", "snns");
+        define(0x03, "CREA", "snns");
+        define(0x04, "JOIN", "g");
+        define(0x05, "STAT", "g");
+        define(0x06, "MOVE", "gm");
+        define(0x07, "GDBY", "s");
+        define(0x08, "QUIT", "g");
+        define(0x09, "MTCH", "s");
+        define(0x0A, "WTCH", "g");
+        define(0x10, "SESS", "ns");
+        define(0x11, "GAMS", "g*");
+        define(0x12, "JOND", "sg");
+        define(0x13, "YRMV", "gs");
+        define(0x14, "BORD", "gssrbr");
+        define(0x15, "TERM", "gss");
+        define(0x16, "RDIR", "gs");
+    }
+
+    private static void define(int opcode, String name, String schema) {
+        NAMES[opcode] = name;
+        SCHEMAS[opcode] = schema;
+        int verb = name.charAt(0) << 24 | name.charAt(1) << 16 | name.charAt(2) << 8 | name.charAt(3);
+        int slot = slotOf(verb);
+        while (VERBS[slot] != 0) {
+            slot = (slot + 1) & 63;
+        }
+        VERBS[slot] = verb;
+        OPCODES[slot] = opcode;
+    }
+
+    private static int slotOf(int verb) {
+        return (verb * 0x9E3779B1) >>> 26;
+    }
+
+    public static boolean isMessage(int firstByte) {
+        return firstByte >= 0 && firstByte < 0x20;
+    }
+
+    // Enough room for the message of a line of the given length, length prefix included
+    public static int maxEncodedLength(int lineLength) {
+        return 2 * lineLength + 16;
+    }
+
+    // Encodes the line, without \r\n, into out from offset and returns the end of the message
+    public static int encode(CharSequence line, byte[] out, int offset) {
+        int length = line.length();
+        int wordEnd = indexOfSpace(line, 0);
+        int opcode = opcodeOf(line, 0, wordEnd);
+        if (opcode == -1) {
+            return wordEnd == length ? encodeError(line, out, offset) : encodeText(line, out, offset);
+        }
+        String schema = SCHEMAS[opcode];
+        // Only the first two strings can be repeated, which is all BORD needs
+        int strings = 0;
+        int firstStart = 0;
+        int firstEnd = 0;
+        int secondStart = 0;
+        int secondEnd = 0;
+        int position = offset;
+        out[position++] = (byte) opcode;
+        for (int field = 0; wordEnd < length; field++) {
+            int start = wordEnd + 1;
+            int end = indexOfSpace(line, start);
+            wordEnd = end;
+            char type = typeOf(schema, field);
+            switch (type) {
+                case 'n':
+                    long number = parseNumber(line, start, end);
+                    if (number < 0) {
+                        return encodeText(line, out, offset);
+                    }
+                    position = putVarint(out, position, number);
+                    break;
+                case 'g':
+                    long sequence = end - start > 3 && line.charAt(start) == 'G' && line.charAt(start + 1) == 'I'
+                        && line.charAt(start + 2) == 'D' ? parseNumber(line, start + 3, end) : -1;
+                    if (sequence < 0) {
+                        return encodeText(line, out, offset);
+                    }
+                    position = putVarint(out, position, sequence);
+                    break;
+                case 'm':
+                    long slot = encodeSlot(line, start, end);
+                    if (slot < 0) {
+                        return encodeText(line, out, offset);
+                    }
+                    position = putVarint(out, position, slot);
+                    break;
+                case 'b':
+                    int boardEnd = encodeBoard(line, start, end, out, position);
+                    if (boardEnd < 0) {
+                        return encodeText(line, out, offset);
+                    }
+                    position = boardEnd;
+                    break;
+                case 'r':
+                case 's':
+                    if (!isAscii(line, start, end)) {
+                        return encodeText(line, out, offset);
+                    }
+                    if (type == 'r') {
+                        int earlier = strings > 0 && sameWord(line, firstStart, firstEnd, start, end) ? 1
+                            : strings > 1 && sameWord(line, secondStart, secondEnd, start, end) ? 2 : 0;
+                        out[position++] = (byte) earlier;
+                        if (earlier > 0) {
+                            break;
+                        }
+                    }
+                    if (strings == 0) {
+                        firstStart = start;
+                        firstEnd = end;
+                    } else if (strings == 1) {
+                        secondStart = start;
+                        secondEnd = end;
+                    }
+                    strings++;
+                    position = putVarint(out, position, end - start);
+                    for (int i = start; i < end; i++) {
+                        out[position++] = (byte) line.charAt(i);
+                    }
+                    break;
+                default:
+                    return encodeText(line, out, offset);
+            }
+        }
+        return position;
+    }
+
+    // Decodes the message between start and end back into its v1 line, without \r\n, and returns the
+    // line's length. MALFORMED for bytes that are not a message, OVERFLOW when out is too small.
+    public static int decode(ByteBuffer in, int start, int end, byte[] out) {
+        if (start >= end) {
+            return MALFORMED;
+        }
+        int opcode = in.get(start) & 0xFF;
+        if (opcode == TEXT) {
+            int at = varintEnd(in, start + 1, end);
+            if (at < 0 || varintAt(in, start + 1) != end - at) {
+                return MALFORMED;
+            }
+            if (end - at > out.length) {
+                return OVERFLOW;
+            }
+            in.get(at, out, 0, end - at);
+            return end - at;
+        }
+        if (opcode == ERR) {
+            if (end - start != 2 || !isMessage(in.get(start + 1)) || NAMES[in.get(start + 1)] == null) {
+                return MALFORMED;
+            }
+            if (out.length < 8) {
+                return OVERFLOW;
+            }
+            putAscii(out, 0, NAMES[in.get(start + 1)]);
+            putAscii(out, 4, "_ERR");
+            return 8;
+        }
+        if (!isMessage(opcode) || NAMES[opcode] == null) {
+            return MALFORMED;
+        }
+        if (out.length < 4) {
+            return OVERFLOW;
+        }
+        String schema = SCHEMAS[opcode];
+        int strings = 0;
+        int firstStart = 0;
+        int firstEnd = 0;
+        int secondStart = 0;
+        int secondEnd = 0;
+        int position = putAscii(out, 0, NAMES[opcode]);
+        int at = start + 1;
+        for (int field = 0; at < end; field++) {
+            char type = typeOf(schema, field);
+            if (position + 25 > out.length) {
+                return OVERFLOW;
+            }
+            out[position++] = ' ';
+            if (type == 'r') {
+                int earlier = in.get(at++);
+                if (earlier == 1 && strings > 0 || earlier == 2 && strings > 1) {
+                    int from = earlier == 1 ? firstStart : secondStart;
+                    int length = (earlier == 1 ? firstEnd : secondEnd) - from;
+                    if (position + length > out.length) {
+                        return OVERFLOW;
+                    }
+                    System.arraycopy(out, from, out, position, length);
+                    position += length;
+                    continue;
+                } else if (earlier != 0) {
+                    return MALFORMED;
+                }
+            }
+            int next = varintEnd(in, at, end);
+            if (next < 0 || type == 0) {
+                return MALFORMED;
+            }
+            long value = varintAt(in, at);
+            at = next;
+            switch (type) {
+                case 'n':
+                    position = putNumber(out, position, value);
+                    break;
+                case 'g':
+                    position = putNumber(out, putAscii(out, position, "GID"), value);
+                    break;
+                case 'm':
+                    if ((value & 1) == 0) {
+                        position = putNumber(out, position, value >>> 1);
+                    } else {
+                        position = putNumber(out, position, value >>> 6);
+                        out[position++] = ',';
+                        position = putNumber(out, position, (value >>> 1) & 0x1F);
+                    }
+                    break;
+                case 'b':
+                    if (value > 5L * (end - at)) {
+                        return MALFORMED;
+                    }
+                    int cells = (int) value;
+                    if (position + 2 * cells + 1 > out.length) {
+                        return OVERFLOW;
+                    }
+                    out[position++] = '|';
+                    for (int cell = 0, packed = 0; cell < cells; cell++, packed /= 3) {
+                        if (cell % 5 == 0) {
+                            packed = in.get(at++) & 0xFF;
+                        }
+                        out[position++] = MARKS[packed % 3];
+                        out[position++] = '|';
+                    }
+                    break;
+                default:
+                    if (value > end - at) {
+                        return MALFORMED;
+                    }
+                    int length = (int) value;
+                    if (position + length > out.length) {
+                        return OVERFLOW;
+                    }
+                    in.get(at, out, position, length);
+                    at += length;
+                    if (strings == 0) {
+                        firstStart = position;
+                        firstEnd = position + length;
+                    } else if (strings == 1) {
+                        secondStart = position;
+                        secondEnd = position + length;
+                    }
+                    strings++;
+                    position += length;
+            }
+        }
+        return at == end ? position : MALFORMED;
+    }
+
+    // The whole length of the TCP message starting at start, prefix included, or -1 while the prefix has
+    // not fully arrived. A prefix longer than any message could need reads as Integer.MAX_VALUE.
+    public static int frameLength(ByteBuffer in, int start, int limit) {
+        int payload = varintEnd(in, start, limit);
+        if (payload < 0) {
+            return limit - start >= 5 ? Integer.MAX_VALUE : -1;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, payload - start + varintAt(in, start));
+    }
+
+    // Where the message itself starts, after the length prefix at start
+    public static int payloadStart(ByteBuffer in, int start) {
+        while ((in.get(start) & 0x80) != 0) {
+            start++;
+        }
+        return start + 1;
+    }
+
+    // Writes the length of the message at offset..end as a varint right in front of it, moving the
+    // message up to make room, and returns the new end
+    public static int prefixLength(byte[] out, int offset, int end) {
+        int length = end - offset;
+        int prefix = 1;
+        for (int rest = length >>> 7; rest != 0; rest >>>= 7) {
+            prefix++;
+        }
+        System.arraycopy(out, offset, out, offset + prefix, length);
+        putVarint(out, offset, length);
+        return end + prefix;
+    }
+
+    // The same hash TttpRequest.routingKey computes over the text game ID, so a game's datagrams reach
+    // the same worker whichever version its players speak
+    public static int routingKey(ByteBuffer in, int end, int fallback) {
+        if (end < 2) {
+            return fallback;
+        }
+        int opcode = in.get(0);
+        if (opcode < 0x04 || opcode > 0x0A || SCHEMAS[opcode].charAt(0) != 'g') {
+            return fallback;
+        }
+        if (varintEnd(in, 1, end) < 0) {
+            return fallback;
+        }
+        long sequence = varintAt(in, 1);
+        int hash = 31 * (31 * 'G' + 'I') + 'D';
+        String digits = Long.toString(sequence);
+        for (int i = 0; i < digits.length(); i++) {
+            hash = 31 * hash + digits.charAt(i);
+        }
+        return hash;
+    }
+
+    // An encoded v1 line and its v2 message, with and without the TCP length prefix
+    static final class Converted {
+        final byte[] line;
+        final byte[] framed;
+        final byte[] datagram;
+
+        Converted(byte[] line, byte[] framed, byte[] datagram) {
+            this.line = line;
+            this.framed = framed;
+            this.datagram = datagram;
+        }
+    }
+
+    // The v2 message for an encoded v1 line, with a length prefix for TCP. A game's BORD snapshot usually
+    // goes to several clients, so the game keeps the conversion of its current snapshot and each
+    // snapshot is converted only once, however many games are sending theirs at the same time.
+    public static byte[] convert(byte[] line, boolean framed, Game game) {
+        Converted converted = game != null ? game.getBordSnapshotV2() : null;
+        if (converted == null || converted.line != line) {
+            String text = new String(line, 0, line.length - 2, StandardCharsets.US_ASCII);
+            byte[] out = new byte[maxEncodedLength(text.length())];
+            int end = encode(text, out, 0);
+            byte[] datagram = Arrays.copyOf(out, end);
+            byte[] withPrefix = Arrays.copyOf(out, prefixLength(out, 0, end));
+            converted = new Converted(line, withPrefix, datagram);
+            if (game != null) {
+                game.setBordSnapshotV2(converted);
+            }
+        }
+        return framed ? converted.framed : converted.datagram;
+    }
+
+    private static char typeOf(String schema, int field) {
+        if (field < schema.length() && schema.charAt(field) != '*') {
+            return schema.charAt(field);
+        }
+        return schema.endsWith("*") ? schema.charAt(schema.length() - 2) : 0;
+    }
+
+    private static int opcodeOf(CharSequence line, int start, int end) {
+        if (end - start != 4) {
+            return -1;
+        }
+        int verb = line.charAt(start) << 24 | line.charAt(start + 1) << 16 | line.charAt(start + 2) << 8
+            | line.charAt(start + 3);
+        for (int slot = slotOf(verb); VERBS[slot] != 0; slot = (slot + 1) & 63) {
+            if (VERBS[slot] == verb) {
+                return OPCODES[slot];
+            }
+        }
+        return -1;
+    }
+
+    private static int encodeError(CharSequence line, byte[] out, int offset) {
+        int length = line.length();
+        if (length == 8 && line.charAt(4) == '_' && line.charAt(5) == 'E' && line.charAt(6) == 'R'
+            && line.charAt(7) == 'R') {
+            int opcode = opcodeOf(line, 0, 4);
+            if (opcode != -1) {
+                out[offset] = ERR;
+                out[offset + 1] = (byte) opcode;
+                return offset + 2;
+            }
+        }
+        return encodeText(line, out, offset);
+    }
+
+    private static int encodeText(CharSequence line, byte[] out, int offset) {
+        out[offset] = TEXT;
+        int position = putVarint(out, offset + 1, line.length());
+        for (int i = 0; i < line.length(); i++) {
+            out[position++] = (byte) line.charAt(i);
+        }
+        return position;
+    }
+
+    // 2n for slot n, 64x + 2y + 1 for x,y; -1 for anything else
+    private static long encodeSlot(CharSequence line, int start, int end) {
+        for (int comma = start; comma < end; comma++) {
+            if (line.charAt(comma) == ',') {
+                long x = parseNumber(line, start, comma);
+                long y = parseNumber(line, comma + 1, end);
+                return x < 0 || y < 0 || y >= 32 ? -1 : x << 6 | y << 1 | 1;
+            }
+        }
+        long slot = parseNumber(line, start, end);
+        return slot < 0 ? -1 : slot << 1;
+    }
+
+    private static int encodeBoard(CharSequence line, int start, int end, byte[] out, int position) {
+        int cells = (end - start - 1) / 2;
+        if (cells < 1 || (end - start) % 2 == 0) {
+            return -1;
+        }
+        for (int i = start; i < end; i += 2) {
+            if (line.charAt(i) != '|') {
+                return -1;
+            }
+        }
+        position = putVarint(out, position, cells);
+        int value = 0;
+        int weight = 1;
+        for (int cell = 0; cell < cells; cell++) {
+            char mark = line.charAt(start + 1 + 2 * cell);
+            int digit = mark == '*' ? 0 : mark == 'X' ? 1 : mark == 'O' ? 2 : -1;
+            if (digit < 0) {
+                return -1;
+            }
+            value += digit * weight;
+            weight *= 3;
+            if (cell % 5 == 4 || cell == cells - 1) {
+                out[position++] = (byte) value;
+                value = 0;
+                weight = 1;
+            }
+        }
+        return position;
+    }
+
+    private static boolean sameWord(CharSequence line, int start, int end, int otherStart, int otherEnd) {
+        if (end - start != otherEnd - otherStart) {
+            return false;
+        }
+        for (int i = 0; i < end - start; i++) {
+            if (line.charAt(start + i) != line.charAt(otherStart + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAscii(CharSequence line, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOfSpace(CharSequence line, int from) {
+        for (int i = from; i < line.length(); i++) {
+            if (line.charAt(i) == ' ') {
+                return i;
+            }
+        }
+        return line.length();
+    }
+
+    // Plain decimal digits without a sign or leading zeros, as the numbers on the wire are written;
+    // -1 for anything else, which then goes as TEXT so the line comes back unchanged
+    private static long parseNumber(CharSequence line, int start, int end) {
+        if (start == end || end - start > 18 || (line.charAt(start) == '0' && end - start > 1)) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = line.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    static int putVarint(byte[] out, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[position++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+    // The index just past the varint at position, or -1 if it runs past the limit or is too long
+    static int varintEnd(ByteBuffer in, int position, int limit) {
+        for (int i = position; i < limit && i - position < 9; i++) {
+            if ((in.get(i) & 0x80) == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // The varint at position, which varintEnd has found to be complete
+    static long varintAt(ByteBuffer in, int position) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.get(position++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int putNumber(byte[] out, int position, long value) {
+        int start = position;
+        do {
+            out[position++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte swap = out[i];
+            out[i] = out[j];
+            out[j] = swap;
+        }
+        return position;
+    }
+
+    private static int putAscii(byte[] out, int position, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            out[position++] = (byte) text.charAt(i);
+        }
+        return position;
+    }
+}
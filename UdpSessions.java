@@ -0,0 +1,107 @@
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// UDP clients keyed by the address and port their datagrams come from, so finding a datagram's
+// connection is one hash lookup however many clients are connected. Clients that send nothing for
+// the idle timeout are dropped. A client using ReliableUdp gets a session per stream instead, so a
+// client that reconnects from the same port is a new session while its old stream finishes draining.
+class UdpSessions {
+    private final Map<Object, ClientConnection> sessions;
+    private final long idleTimeoutMillis;
+    private final Consumer<ClientConnection> expiryListener;
+
+    public UdpSessions(long idleTimeoutMillis, Consumer<ClientConnection> expiryListener) {
+        this.sessions = new ConcurrentHashMap<>();
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.expiryListener = expiryListener;
+    }
+
+    // Returns the client's connection, creating it on the first datagram from that address. Replies go
+    // out through the channel the first datagram arrived on.
+    public ClientConnection sessionFor(InetSocketAddress address, DatagramChannel channel) {
+        ClientConnection clientConnection = sessions.get(address);
+        if (clientConnection == null) {
+            clientConnection = sessions.computeIfAbsent(address, a -> {
+                Log.info("UDP CLIENT CONNECTED");
+                return new ClientConnection(channel, address, this, a, false);
+            });
+        }
+        clientConnection.touch();
+        return clientConnection;
+    }
+
+    // Returns the connection of a reliable stream, creating it only for the stream's first datagram, so
+    // stray ACKs of a stream that is gone do not open sessions. Returns null for those.
+    public ClientConnection streamSessionFor(InetSocketAddress address, int stream, boolean opening, DatagramChannel channel) {
+        StreamKey key = new StreamKey(address, stream);
+        ClientConnection clientConnection = sessions.get(key);
+        if (clientConnection == null) {
+            if (!opening) {
+                return null;
+            }
+            clientConnection = sessions.computeIfAbsent(key, k -> {
+                Log.info("UDP CLIENT CONNECTED");
+                return new ClientConnection(channel, address, this, k, true);
+            });
+        }
+        clientConnection.touch();
+        return clientConnection;
+    }
+
+    public void remove(ClientConnection clientConnection) {
+        sessions.remove(clientConnection.getUdpKey(), clientConnection);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public void startExpiring() {
+        if (idleTimeoutMillis <= 0) {
+            return;
+        }
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "udp-session-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1000, idleTimeoutMillis / 4);
+        sweeper.scheduleWithFixedDelay(this::expireIdleSessions, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void expireIdleSessions() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        for (ClientConnection clientConnection : sessions.values()) {
+            if (clientConnection.getLastSeen() < cutoff && sessions.remove(clientConnection.getUdpKey(), clientConnection)) {
+                Log.info("UDP CLIENT EXPIRED");
+                expiryListener.accept(clientConnection);
+            }
+        }
+    }
+
+    private static final class StreamKey {
+        final InetSocketAddress address;
+        final int stream;
+
+        StreamKey(InetSocketAddress address, int stream) {
+            this.address = address;
+            this.stream = stream;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof StreamKey key && key.stream == stream && key.address.equals(address);
+        }
+
+        @Override
+        public int hashCode() {
+            return address.hashCode() * 31 + stream;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Supplier;
+
+// JMH refuses benchmark classes in the default package, and classes in a named package cannot see the
+// server's, so the benchmarks look this class up once and only ever call the suppliers it hands out
+public class HotPathTargets {
+    private static final int[] DRAWN_GAME = {1, 2, 3, 5, 4, 6, 8, 7, 9};
+
+    private static class SinkConnection extends ClientConnection {
+        private CharSequence lastResponse;
+
+        @Override
+        public void sendResponse(CharSequence response) {
+            lastResponse = response;
+        }
+
+        @Override
+        public void sendEncoded(byte[] line, Game game) {
+            lastResponse = new String(line, 0, line.length - 2);
+        }
+    }
+
+    private static String sharedGameId;
+
+    // Counts responses so a caller can wait for the answer to a request that was queued for its game
+    private static class CountingConnection extends ClientConnection {
+        private volatile int responses;
+
+        @Override
+        public void sendResponse(CharSequence response) {
+            responses++;
+        }
+
+        @Override
+        public void sendEncoded(byte[] line, Game game) {
+            responses++;
+        }
+    }
+
+    public static Supplier<Object> parseRequest(String request) {
+        TttpRequest parsedRequest = new TttpRequest();
+        String line = request.replace("{game}", "GID0");
+        return () -> {
+            parsedRequest.parse(line);
+            return parsedRequest.getVerb() + parsedRequest.getParameterCount();
+        };
+    }
+
+    // One request line through TicTacToeServer.handleClientRequest; {game} is replaced by the ID of a
+    // game in progress between the two players. The request comes from the player whose turn it is, so
+    // MOVE gets past the turn check to the move itself.
+    public static Supplier<Object> handleClientRequest(String request) {
+        SinkConnection connection = new SinkConnection();
+        String gameId = startGame(3, 3, 4);
+        TicTacToeServer.handleClientRequest(connection,
+            "HELO 1 " + TicTacToeServer.games().getGame(gameId).getCurrentPlayer());
+        String line = request.replace("{game}", gameId);
+        return () -> {
+            TicTacToeServer.handleClientRequest(connection, line);
+            return connection.lastResponse;
+        };
+    }
+
+    // The same, with request metrics recorded or not, to measure what the instrumentation costs
+    public static Supplier<Object> handleClientRequest(String request, boolean metrics, int sampleRate) {
+        Metrics.setEnabled(metrics);
+        Metrics.setSampleRate(sampleRate);
+        return handleClientRequest(request);
+    }
+
+    // One request line per call from every benchmark thread, all naming the same game or each its own,
+    // to compare a busy game's mailbox with idle ones. Like a client, each call waits for its answer.
+    public static synchronized Supplier<Object> handleGameRequest(String request, boolean sharedGame) {
+        if (sharedGameId == null) {
+            sharedGameId = startGame(3, 3, 4);
+        }
+        CountingConnection connection = new CountingConnection();
+        String line = request.replace("{game}", sharedGame ? sharedGameId : startGame(3, 3, 4));
+        return () -> {
+            int answered = connection.responses;
+            TicTacToeServer.handleClientRequest(connection, line);
+            while (connection.responses == answered) {
+                Thread.onSpinWait();
+            }
+            return answered;
+        };
+    }
+
+    // Parses every request and encodes every response of a whole 3 x 3 game, as a TCP client of the given
+    // TTTP version sends and receives them. Returns the bytes the game puts on the wire.
+    public static Supplier<Object> codecGame(int protocol) {
+        List<String> requests = new ArrayList<>();
+        List<String> responses = new ArrayList<>();
+        recordGame(requests, responses);
+        ByteBuffer[] encodedRequests = new ByteBuffer[requests.size()];
+        for (int i = 0; i < encodedRequests.length; i++) {
+            encodedRequests[i] = ByteBuffer.wrap(protocol == 2 ? encodeV2(requests.get(i))
+                : (requests.get(i) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        String[] lines = responses.toArray(new String[0]);
+        TttpRequest request = new TttpRequest();
+        byte[] out = new byte[1024];
+        return () -> {
+            int bytes = 0;
+            for (ByteBuffer encoded : encodedRequests) {
+                if (protocol == 2) {
+                    request.parseMessage(encoded, TttpV2.payloadStart(encoded, 0), encoded.limit());
+                } else {
+                    request.parse(encoded, 0, encoded.limit());
+                }
+                bytes += encoded.limit();
+            }
+            for (String line : lines) {
+                if (protocol == 2) {
+                    bytes += TttpV2.prefixLength(out, 0, TttpV2.encode(line, out, 0));
+                } else {
+                    for (int i = 0; i < line.length(); i++) {
+                        out[i] = (byte) line.charAt(i);
+                    }
+                    out[line.length()] = '\r';
+                    out[line.length() + 1] = '\n';
+                    bytes += line.length() + 2;
+                }
+            }
+            return bytes;
+        };
+    }
+
+    // The number of lines codecGame handles per game
+    public static Supplier<Object> gameMessages() {
+        List<String> requests = new ArrayList<>();
+        List<String> responses = new ArrayList<>();
+        recordGame(requests, responses);
+        int messages = requests.size() + responses.size();
+        return () -> messages;
+    }
+
+    private static byte[] encodeV2(String line) {
+        byte[] out = new byte[TttpV2.maxEncodedLength(line.length())];
+        return Arrays.copyOf(out, TttpV2.prefixLength(out, 0, TttpV2.encode(line, out, 0)));
+    }
+
+    // Plays a drawn game from HELO to GDBY through the request handler and records what both players
+    // sent and got
+    private static void recordGame(List<String> requests, List<String> responses) {
+        RecordingConnection alice = new RecordingConnection(responses);
+        RecordingConnection bob = new RecordingConnection(responses);
+        play(alice, "HELO 2 alice", requests);
+        play(bob, "HELO 2 bob", requests);
+        play(alice, "CREA alice", requests);
+        String gameId = responses.get(responses.size() - 1).split(" ")[2];
+        play(bob, "JOIN " + gameId, requests);
+        Game game = TicTacToeServer.games().getGame(gameId);
+        for (int i = 0; !game.isDone(); i++) {
+            RecordingConnection player = game.getCurrentPlayer().equals("alice") ? alice : bob;
+            play(player, "STAT " + gameId, requests);
+            play(player, "MOVE " + gameId + " " + DRAWN_GAME[i], requests);
+        }
+        play(alice, "GDBY alice", requests);
+        play(bob, "GDBY bob", requests);
+    }
+
+    private static void play(ClientConnection player, String request, List<String> requests) {
+        requests.add(request);
+        TicTacToeServer.handleClientRequest(player, request);
+    }
+
+    private static class RecordingConnection extends ClientConnection {
+        private final List<String> responses;
+
+        RecordingConnection(List<String> responses) {
+            this.responses = responses;
+        }
+
+        @Override
+        public void sendResponse(CharSequence response) {
+            responses.add(response.toString());
+        }
+
+        @Override
+        public void sendEncoded(byte[] line, Game game) {
+            responses.add(new String(line, 0, line.length - 2, StandardCharsets.US_ASCII));
+        }
+    }
+
+    // A whole game of makeMove and checkForWinner calls, ending in a draw on 3 x 3 and in a win on larger
+    // boards where the slots are simply filled in order
+    public static Supplier<Object> playGame(int size, int winLength) {
+        return () -> {
+            Game game = new Game("GID", size, winLength);
+            game.addPlayer("alice");
+            game.addPlayer("bob");
+            game.chooseStartingPlayer();
+            int moves = 0;
+            while (!game.isDone()) {
+                int slot = size == 3 ? DRAWN_GAME[moves] : moves + 1;
+                game.makeMove(slot);
+                game.switchTurn();
+                moves++;
+            }
+            return moves;
+        };
+    }
+
+    public static Supplier<Object> buildBORDResponse(int size, int winLength, int moves) {
+        String gameId = startGame(size, winLength, moves);
+        return () -> TicTacToeServer.buildBORDResponse(gameId);
+    }
+
+    // What STAT sends between two moves: the snapshot cached by the first request after a move
+    public static Supplier<Object> bordSnapshot(int size, int winLength, int moves) {
+        Game game = TicTacToeServer.games().getGame(startGame(size, winLength, moves));
+        return () -> TicTacToeServer.bordSnapshot(game);
+    }
+
+    public static Supplier<Object> buildT3Board(int size, int winLength, int moves) {
+        Board board = TicTacToeServer.games().getGame(startGame(size, winLength, moves)).getBoard();
+        return () -> TicTacToeServer.buildT3Board(board);
+    }
+
+    public static Supplier<Object> getGamesByType(int gameCount, String type) {
+        Games games = createGames(gameCount);
+        return () -> games.getGamesByType(type);
+    }
+
+    // The page in the middle of the index, the most expensive one to reach
+    public static Supplier<Object> getGamesPage(int gameCount, String type, int limit) {
+        Games games = createGames(gameCount);
+        int offset = gameCount / 6;
+        return () -> games.getGamesByType(type, offset, limit);
+    }
+
+    // A registry where a third of the games are open, a third in progress and a third finished
+    private static Games createGames(int gameCount) {
+        Games games = new Games();
+        for (int i = 0; i < gameCount; i++) {
+            Game game = games.createGame("alice");
+            if (i % 3 != 0) {
+                games.addPlayerToGame("bob", game.getGameId());
+            }
+            if (i % 3 == 2) {
+                game.finishGame();
+            }
+        }
+        return games;
+    }
+
+    // Sets up a game between two players through the request handler, the same way clients do
+    private static String startGame(int size, int winLength, int moves) {
+        SinkConnection alice = new SinkConnection();
+        SinkConnection bob = new SinkConnection();
+        TicTacToeServer.handleClientRequest(alice, "HELO 1 alice");
+        TicTacToeServer.handleClientRequest(bob, "HELO 1 bob");
+        TicTacToeServer.handleClientRequest(alice, "CREA alice " + size + " " + winLength);
+        String gameId = alice.lastResponse.toString().split(" ")[2];
+        TicTacToeServer.handleClientRequest(bob, "JOIN " + gameId);
+        Game game = TicTacToeServer.games().getGame(gameId);
+        for (int i = 0; i < moves && !game.isDone(); i++) {
+            SinkConnection player = game.getCurrentPlayer().equals("alice") ? alice : bob;
+            int slot = size == 3 ? DRAWN_GAME[i] : i + 1;
+            TicTacToeServer.handleClientRequest(player, "MOVE " + gameId + " " + slot);
+        }
+        return gameId;
+    }
+}
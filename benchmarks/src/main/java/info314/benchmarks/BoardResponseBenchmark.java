@@ -0,0 +1,47 @@
+package info314.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.*;
+
+// BORD assembly for a game a few moves in, with and without the rest of the response around the board,
+// against the cached snapshot STAT serves until the next move
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BoardResponseBenchmark {
+    @Param({"3:3", "15:5"})
+    private String variant;
+
+    private Supplier<Object> bordResponse;
+    private Supplier<Object> t3Board;
+    private Supplier<Object> bordSnapshot;
+
+    @Setup
+    public void setUp() {
+        String[] parts = variant.split(":");
+        int size = Integer.parseInt(parts[0]);
+        int winLength = Integer.parseInt(parts[1]);
+        bordResponse = Targets.lookup("buildBORDResponse", size, winLength, 4);
+        t3Board = Targets.lookup("buildT3Board", size, winLength, 4);
+        bordSnapshot = Targets.lookup("bordSnapshot", size, winLength, 4);
+    }
+
+    @Benchmark
+    public Object buildBORDResponse() {
+        return bordResponse.get();
+    }
+
+    @Benchmark
+    public Object bordSnapshot() {
+        return bordSnapshot.get();
+    }
+
+    @Benchmark
+    public Object buildT3Board() {
+        return t3Board.get();
+    }
+}
@@ -0,0 +1,30 @@
+package info314.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.*;
+
+// One operation is a whole game of makeMove + checkForWinner calls, from an empty board to the end
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GameBenchmark {
+    @Param({"3:3", "15:5", "19:5"})
+    private String variant;
+
+    private Supplier<Object> target;
+
+    @Setup
+    public void setUp() {
+        String[] parts = variant.split(":");
+        target = Targets.lookup("playGame", Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    @Benchmark
+    public Object playGame() {
+        return target.get();
+    }
+}
@@ -0,0 +1,40 @@
+package info314.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.*;
+
+// LIST over registries of growing size, a third of the games open, in progress and finished each. A
+// page is 50 games from the middle of the requested index.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class GameListBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    private int games;
+
+    @Param({"OPEN", "CURR", "ALL"})
+    private String type;
+
+    private Supplier<Object> target;
+    private Supplier<Object> page;
+
+    @Setup
+    public void setUp() {
+        target = Targets.lookup("getGamesByType", games, type);
+        page = Targets.lookup("getGamesPage", games, type, 50);
+    }
+
+    @Benchmark
+    public Object getGamesByType() {
+        return target.get();
+    }
+
+    @Benchmark
+    public Object getGamesPage() {
+        return page.get();
+    }
+}
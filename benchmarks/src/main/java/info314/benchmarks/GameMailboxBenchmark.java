@@ -0,0 +1,37 @@
+package info314.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.*;
+
+// Requests naming a game from four threads at once, either all for one game, whose mailbox then queues
+// them behind each other, or each for a game of its own, which never waits on the others
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class GameMailboxBenchmark {
+    @Param({"STAT {game}"})
+    private String request;
+
+    @Param({"false", "true"})
+    private boolean sharedGame;
+
+    @State(Scope.Thread)
+    public static class Client {
+        private Supplier<Object> target;
+
+        @Setup
+        public void setUp(GameMailboxBenchmark benchmark) {
+            target = Targets.lookup("handleGameRequest", benchmark.request, benchmark.sharedGame);
+        }
+    }
+
+    @Benchmark
+    public Object handleGameRequest(Client client) {
+        return client.target.get();
+    }
+}
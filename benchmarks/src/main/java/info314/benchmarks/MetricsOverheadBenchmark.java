@@ -0,0 +1,112 @@
+package info314.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.*;
+
+// handleClientRequest with and without the per-verb counters and latency recording, timing every
+// request or one in 16, from one thread per core so that contention on the shared histograms shows
+// up too. Every thread has its own connection and game. roundTrip sends the same request to a real
+// server on port 3116 over UDP and waits for the answer, which is what the metrics cost a client.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+@Threads(Threads.MAX)
+public class MetricsOverheadBenchmark {
+    @Param({"STAT {game}", "LIST CURR"})
+    private String request;
+
+    @Param({"false", "true"})
+    private boolean metrics;
+
+    @Param({"1", "16"})
+    private int sampleRate;
+
+    @State(Scope.Thread)
+    public static class Client {
+        private Supplier<Object> target;
+
+        @Setup
+        public void setUp(MetricsOverheadBenchmark benchmark) {
+            target = Targets.lookup("handleClientRequest", benchmark.request, benchmark.metrics,
+                benchmark.sampleRate);
+        }
+    }
+
+    // Started from the benchmark jar like UdpThroughputBenchmark's, with the metrics endpoint on or off
+    @State(Scope.Benchmark)
+    public static class Server {
+        private Process process;
+
+        @Setup
+        public void start(MetricsOverheadBenchmark benchmark) throws Exception {
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "TicTacToeServer",
+                "--journal=off", "--metrics-port=" + (benchmark.metrics ? 3117 : 0),
+                "--metrics-sample=" + benchmark.sampleRate)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+            try (UdpThroughputBenchmark.Client probe = new UdpThroughputBenchmark.Client()) {
+                for (int attempt = 0; !answers(probe); attempt++) {
+                    if (attempt == 50) {
+                        process.destroy();
+                        throw new IllegalStateException("server did not answer on UDP port 3116");
+                    }
+                    Thread.sleep(100);
+                }
+            }
+        }
+
+        // Until the server has bound the port the probe's socket reports it unreachable
+        private static boolean answers(UdpThroughputBenchmark.Client probe) {
+            try {
+                return probe.request("STAT GID0") != null;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @TearDown
+        public void stop() throws InterruptedException {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+    // A UDP client with a session and a game of its own, which {game} in the request names
+    @State(Scope.Thread)
+    public static class UdpClient {
+        private UdpThroughputBenchmark.Client client;
+        private String line;
+
+        @Setup
+        public void setUp(Server server, MetricsOverheadBenchmark benchmark) throws IOException {
+            client = new UdpThroughputBenchmark.Client();
+            String clientId = "metrics" + Thread.currentThread().getId();
+            client.request("HELO 1 " + clientId);
+            String gameId = client.request("CREA " + clientId).trim().split(" ")[2];
+            line = benchmark.request.replace("{game}", gameId);
+        }
+
+        @TearDown
+        public void tearDown() {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public Object handleClientRequest(Client client) {
+        return client.target.get();
+    }
+
+    @Benchmark
+    public Object roundTrip(UdpClient client) throws IOException {
+        return client.client.request(client.line);
+    }
+}
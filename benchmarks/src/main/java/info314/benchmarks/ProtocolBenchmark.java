@@ -0,0 +1,43 @@
+package info314.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.*;
+
+// Every request of a whole 3 x 3 game parsed and every response encoded, in TTTP v1 text and in v2
+// binary. The counters turn games per second into messages per second and the bytes the game puts on
+// the wire; divide bytes by the score for bytes per game.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+    @Param({"1", "2"})
+    private int protocol;
+
+    private Supplier<Object> codecGame;
+    private int messagesPerGame;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class WireCounters {
+        public long messages;
+        public long bytes;
+    }
+
+    @Setup
+    public void setUp() {
+        codecGame = Targets.lookup("codecGame", protocol);
+        messagesPerGame = (Integer) Targets.lookup("gameMessages").get();
+    }
+
+    @Benchmark
+    public Object codecGame(WireCounters counters) {
+        int bytes = (Integer) codecGame.get();
+        counters.messages += messagesPerGame;
+        counters.bytes += bytes;
+        return bytes;
+    }
+}
@@ -0,0 +1,37 @@
+package info314.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.*;
+
+// Parsing a request line on its own, and the full line through handleClientRequest: parsing, verb
+// dispatch and encoding the response
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParsingBenchmark {
+    @Param({"HELO 1 alice", "STAT {game}", "MOVE {game} 10", "NOOP a b c"})
+    private String request;
+
+    private Supplier<Object> parse;
+    private Supplier<Object> target;
+
+    @Setup
+    public void setUp() {
+        parse = Targets.lookup("parseRequest", request);
+        target = Targets.lookup("handleClientRequest", request);
+    }
+
+    @Benchmark
+    public Object parseRequest() {
+        return parse.get();
+    }
+
+    @Benchmark
+    public Object handleClientRequest() {
+        return target.get();
+    }
+}
@@ -0,0 +1,24 @@
+package info314.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.function.Supplier;
+
+// Looks up the server code under test, which lives in the default package, through HotPathTargets
+final class Targets {
+    private Targets() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static Supplier<Object> lookup(String name, Object... args) {
+        try {
+            for (Method method : Class.forName("HotPathTargets").getMethods()) {
+                if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+                    return (Supplier<Object>) method.invoke(null, args);
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot set up " + name, e);
+        }
+        throw new IllegalArgumentException("no benchmark target " + name);
+    }
+}
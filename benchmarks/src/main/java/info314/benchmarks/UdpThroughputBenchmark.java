@@ -0,0 +1,112 @@
+package info314.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.*;
+
+// Datagrams per second through a real server on port 3116 as the number of UDP receivers grows. Each
+// fork starts the server from the benchmark jar, and every benchmark thread is a separate UDP client
+// sending STAT for its own game ID and waiting for the answer.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class UdpThroughputBenchmark {
+    private static final int PORT = 3116;
+
+    @Param({"1", "2", "4"})
+    private int receivers;
+
+    private Process server;
+
+    @Setup
+    public void startServer() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "TicTacToeServer",
+            "--journal=off", "--finished-ttl=0", "--udp-receivers=" + receivers)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+        try (Client probe = new Client()) {
+            for (int attempt = 0; !answers(probe); attempt++) {
+                if (attempt == 50) {
+                    server.destroy();
+                    throw new IllegalStateException("server did not answer on UDP port " + PORT);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // Until the server has bound the port the probe's socket reports it unreachable
+    private static boolean answers(Client probe) {
+        try {
+            return probe.request("STAT GID0") != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @TearDown
+    public void stopServer() throws InterruptedException {
+        server.destroy();
+        server.waitFor();
+    }
+
+    @State(Scope.Thread)
+    public static class Client implements AutoCloseable {
+        private static final AtomicInteger clients = new AtomicInteger();
+
+        private final DatagramSocket socket;
+        private final byte[] request;
+        private final DatagramPacket response = new DatagramPacket(new byte[1024], 1024);
+
+        public Client() {
+            try {
+                socket = new DatagramSocket();
+                socket.connect(InetAddress.getLoopbackAddress(), PORT);
+                socket.setSoTimeout(200);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            request = ("STAT GID" + clients.getAndIncrement()).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        // null when the request or its answer was dropped
+        String request(String line) throws IOException {
+            byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+            socket.send(new DatagramPacket(bytes, bytes.length));
+            return receive();
+        }
+
+        String receive() throws IOException {
+            try {
+                socket.receive(response);
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            return new String(response.getData(), 0, response.getLength(), StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public Object stat(Client client) throws IOException {
+        client.socket.send(new DatagramPacket(client.request, client.request.length));
+        return client.receive();
+    }
+}